@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Counts processed files and bytes, JMH reports these as rates next to the operation rate
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class FileCounters {
+    public long files;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        files = 0;
+        bytes = 0;
+    }
+
+    public void add(int files, long bytes) {
+        this.files += files;
+        this.bytes += bytes;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+// Generates source and resource trees to run the benchmarks on. Trees are generated from a fixed seed, so every run
+// injects the same files.
+public class InjectionFixture {
+    public static final String ANNOTATION = "bench.Constant";
+
+    private final File sourceDir;
+    private final File resourceDir;
+    private int files;
+    private long bytes;
+
+    private InjectionFixture(File root) {
+        this.sourceDir = new File(root, "java");
+        this.resourceDir = new File(root, "resources");
+    }
+
+    public File getSourceDir() {
+        return sourceDir;
+    }
+
+    public File getResourceDir() {
+        return resourceDir;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public static String key(int index) {
+        return "bench.key" + index;
+    }
+
+    public static String fileExtension(int pattern) {
+        return "res" + pattern;
+    }
+
+    // Creates a tree of Java files, of which the given fraction uses the constant annotation on the given amount of
+    // fields. The remaining files are plain classes of similar size.
+    public static InjectionFixture javaTree(File root, int files, double density, int fieldsPerFile) throws IOException {
+        InjectionFixture fixture = new InjectionFixture(root);
+        Random random = new Random(files * 31L + fieldsPerFile);
+
+        for (int i = 0; i < files; i++) {
+            boolean annotated = random.nextDouble() < density;
+            fixture.write(new File(fixture.sourceDir, "bench/p" + i % 16 + "/Class" + i + ".java"), javaSource(i, annotated, fieldsPerFile, random));
+        }
+        return fixture;
+    }
+
+    // Creates a tree of resources spread evenly over the given amount of resource patterns, see resourcePattern
+    public static InjectionFixture resourceTree(File root, int files, int patterns, int lines) throws IOException {
+        InjectionFixture fixture = new InjectionFixture(root);
+        Random random = new Random(files * 31L + patterns);
+
+        for (int i = 0; i < files; i++) {
+            int pattern = i % patterns;
+            fixture.write(new File(fixture.resourceDir, "assets/r" + i + "." + fileExtension(pattern)), resource(pattern, lines, random));
+        }
+        return fixture;
+    }
+
+    public static String javaSource(int index, boolean annotated, int fields, Random random) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("package bench.p").append(index % 16).append(";\n\n");
+        builder.append("import ").append(ANNOTATION).append(";\n");
+        builder.append("import java.util.List;\n");
+        builder.append("import java.util.ArrayList;\n\n");
+        builder.append("public class Class").append(index).append(" {\n");
+        for (int f = 0; f < fields; f++) {
+            if (annotated) {
+                builder.append("    @Constant(\"").append(key(random.nextInt(64))).append("\")\n");
+            }
+            builder.append("    public static final String FIELD_").append(f).append(" = \"placeholder\";\n");
+        }
+        builder.append("\n    private final List<String> values = new ArrayList<>();\n\n");
+        for (int m = 0; m < 8; m++) {
+            builder.append("    // Computes something that doesn't matter\n");
+            builder.append("    public int method").append(m).append("(int value) {\n");
+            builder.append("        int result = value * ").append(random.nextInt(100)).append(";\n");
+            builder.append("        for (String str : values) {\n");
+            builder.append("            result += str.length();\n");
+            builder.append("        }\n");
+            builder.append("        return result;\n");
+            builder.append("    }\n\n");
+        }
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    // Each pattern uses its own placeholder syntax, so that patterns don't match each other's placeholders
+    public static String resourcePattern(int pattern) {
+        return "\\$" + pattern + "\\{([a-z.0-9]+)\\}";
+    }
+
+    public static String resource(int pattern, int lines, Random random) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\n");
+        for (int l = 0; l < lines; l++) {
+            builder.append("  \"entry.").append(l).append("\": \"");
+            if (random.nextInt(4) == 0) {
+                builder.append("Version $").append(pattern).append('{').append(key(random.nextInt(64))).append('}');
+            } else {
+                builder.append("Some text without any constant in it");
+            }
+            builder.append("\",\n");
+        }
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    public static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void write(File file, String content) throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), data);
+        files++;
+        bytes += data.length;
+    }
+}
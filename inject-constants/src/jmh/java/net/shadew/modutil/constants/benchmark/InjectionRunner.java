@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants.benchmark;
+
+import net.shadew.modutil.constants.ConstantInjectionTask;
+import net.shadew.modutil.constants.ConstantsExtension;
+import org.gradle.api.Action;
+import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.testfixtures.ProjectBuilder;
+
+import java.io.File;
+
+// Runs a ConstantInjectionTask outside of a build, so that only the injection itself is measured
+public final class InjectionRunner {
+    private InjectionRunner() {
+    }
+
+    public static ConstantInjectionTask createTask(File root, File from, boolean preserveFormatting, Action<ConstantsExtension> config) {
+        Project project = ProjectBuilder.builder().withProjectDir(new File(root, "project")).build();
+
+        ConstantsExtension extension = project.getExtensions().create("constants", ConstantsExtension.class, project);
+        extension.annotation(InjectionFixture.ANNOTATION);
+        extension.preserveFormatting(preserveFormatting);
+        extension.constants(name -> "value of " + name);
+        config.execute(extension);
+
+        return project.getTasks().create("injectConstants", ConstantInjectionTask.class, task -> {
+            task.setDestinationDir(getOutputDir(root));
+            task.from(from);
+            task.incremental(false);
+        });
+    }
+
+    public static File getOutputDir(File root) {
+        return new File(root, "out");
+    }
+
+    public static void run(Task task) {
+        for (Action<? super Task> action : task.getActions()) {
+            action.execute(task);
+        }
+    }
+}
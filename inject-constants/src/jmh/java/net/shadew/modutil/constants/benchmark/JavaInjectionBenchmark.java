@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants.benchmark;
+
+import net.shadew.modutil.constants.ConstantInjectionTask;
+import org.jboss.forge.roaster.Roaster;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Measures injection of Java sources: scanning for the annotation, parsing, modifying and printing
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JavaInjectionBenchmark {
+    @Param({"100", "1000"})
+    public int files;
+
+    // Fraction of files that use the constant annotation
+    @Param({"0.0", "0.1", "1.0"})
+    public double density;
+
+    @Param({"4"})
+    public int fieldsPerFile;
+
+    @Param({"true", "false"})
+    public boolean preserveFormatting;
+
+    private File root;
+    private InjectionFixture fixture;
+    private ConstantInjectionTask task;
+
+    private final List<String> annotatedSources = new ArrayList<>();
+    private long annotatedBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("inject-constants-jmh").toFile();
+        fixture = InjectionFixture.javaTree(new File(root, "in"), files, density, fieldsPerFile);
+        task = InjectionRunner.createTask(root, fixture.getSourceDir(), preserveFormatting, extension -> {});
+
+        Random random = new Random(fieldsPerFile);
+        for (int i = 0; i < 16; i++) {
+            String source = InjectionFixture.javaSource(i, true, fieldsPerFile, random);
+            annotatedSources.add(source);
+            annotatedBytes += source.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+
+    // Outputs that already have the right contents are not written again, so every invocation starts without outputs
+    // to measure writing them
+    @Setup(Level.Invocation)
+    public void cleanOutput() {
+        InjectionFixture.deleteTree(InjectionRunner.getOutputDir(root));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        InjectionFixture.deleteTree(root);
+    }
+
+    @Benchmark
+    public void injectSourceTree(FileCounters counters) {
+        InjectionRunner.run(task);
+        counters.add(fixture.getFiles(), fixture.getBytes());
+    }
+
+    // Parsing is the largest cost of injecting a file that uses the annotation
+    @Benchmark
+    @OperationsPerInvocation(16)
+    public void parseAnnotatedSource(FileCounters counters, Blackhole blackhole) {
+        for (String source : annotatedSources) {
+            blackhole.consume(Roaster.parseUnit(source));
+        }
+        counters.add(annotatedSources.size(), annotatedBytes);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants.benchmark;
+
+import net.shadew.modutil.constants.ConstantInjectionTask;
+import net.shadew.modutil.constants.ResourceRewriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+// Measures injection of resources, both through the rewriter alone and through the task
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ResourceInjectionBenchmark {
+    private static final int CONTENTS = 64;
+    private static final Function<String, Object> RESOLVER = name -> "value of " + name;
+
+    @Param({"1", "4", "16"})
+    public int patterns;
+
+    @Param({"100", "10000"})
+    public int lines;
+
+    @Param({"200"})
+    public int files;
+
+    private File root;
+    private InjectionFixture fixture;
+    private ConstantInjectionTask task;
+
+    private ResourceRewriter rewriter;
+    private final String[] paths = new String[CONTENTS];
+    private final String[] contents = new String[CONTENTS];
+    private long contentBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Map<Pattern, Pattern> resourcePatterns = new LinkedHashMap<>();
+        for (int p = 0; p < patterns; p++) {
+            resourcePatterns.put(
+                Pattern.compile(".*\\." + InjectionFixture.fileExtension(p)),
+                Pattern.compile(InjectionFixture.resourcePattern(p))
+            );
+        }
+        rewriter = new ResourceRewriter(resourcePatterns);
+
+        Random random = new Random(lines);
+        for (int i = 0; i < CONTENTS; i++) {
+            int pattern = i % patterns;
+            paths[i] = "assets/r" + i + "." + InjectionFixture.fileExtension(pattern);
+            contents[i] = InjectionFixture.resource(pattern, lines, random);
+            contentBytes += contents[i].getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        root = Files.createTempDirectory("inject-constants-jmh").toFile();
+        fixture = InjectionFixture.resourceTree(new File(root, "in"), files, patterns, lines);
+        task = InjectionRunner.createTask(root, fixture.getResourceDir(), true, extension -> {
+            for (int p = 0; p < patterns; p++) {
+                extension.pattern(".*\\." + InjectionFixture.fileExtension(p), InjectionFixture.resourcePattern(p));
+            }
+        });
+    }
+
+    // Removes the outputs of the previous invocation, which would otherwise only be compared and not written
+    @Setup(Level.Invocation)
+    public void cleanOutput() {
+        InjectionFixture.deleteTree(InjectionRunner.getOutputDir(root));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        InjectionFixture.deleteTree(root);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONTENTS)
+    public void rewriteInMemory(FileCounters counters, Blackhole blackhole) {
+        for (int i = 0; i < CONTENTS; i++) {
+            blackhole.consume(rewriter.forPath(paths[i]).rewrite(contents[i], RESOLVER));
+        }
+        counters.add(CONTENTS, contentBytes);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONTENTS)
+    public void rewriteStreaming(FileCounters counters, Blackhole blackhole) throws IOException {
+        for (int i = 0; i < CONTENTS; i++) {
+            StringWriter out = new StringWriter(contents[i].length());
+            rewriter.forPath(paths[i]).rewrite(new StringReader(contents[i]), out, RESOLVER);
+            blackhole.consume(out);
+        }
+        counters.add(CONTENTS, contentBytes);
+    }
+
+    @Benchmark
+    public void injectResourceTree(FileCounters counters) {
+        InjectionRunner.run(task);
+        counters.add(fixture.getFiles(), fixture.getBytes());
+    }
+}
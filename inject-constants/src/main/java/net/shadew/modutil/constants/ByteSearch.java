@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.constants;
+
+import java.nio.charset.StandardCharsets;
+
+// Finds a fixed byte sequence in raw file contents, without decoding them
+public class ByteSearch {
+    private final byte[] pattern;
+    private final int[] shift = new int[256];
+
+    public ByteSearch(byte[] pattern) {
+        if (pattern.length == 0) throw new IllegalArgumentException("Empty pattern");
+        this.pattern = pattern;
+
+        // Horspool shift table
+        for (int i = 0; i < 256; i++) {
+            shift[i] = pattern.length;
+        }
+        for (int i = 0; i < pattern.length - 1; i++) {
+            shift[pattern[i] & 0xFF] = pattern.length - 1 - i;
+        }
+    }
+
+    public ByteSearch(String pattern) {
+        this(pattern.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int indexOf(byte[] data, int from, int to) {
+        int last = pattern.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (data[i + j] == pattern[j]) {
+                if (j == 0) return i;
+                j--;
+            }
+            i += shift[data[i + last] & 0xFF];
+        }
+        return -1;
+    }
+
+    public int indexOf(byte[] data) {
+        return indexOf(data, 0, data.length);
+    }
+
+    public boolean containedIn(byte[] data) {
+        return indexOf(data) >= 0;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.constants;
+
+import org.gradle.api.Action;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.tasks.compile.JavaCompile;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+// Injects constants into compiled class files, used when the injection mode is BYTECODE. This runs as the last action
+// of a compile task, and rewrites the ConstantValue attributes of annotated fields as well as the places where javac
+// inlined these fields, if it can identify them.
+public class ClassConstantInjector implements Action<Task> {
+    // Some file systems store modification times in seconds
+    private static final long MODIFICATION_TIME_TOLERANCE = 2000;
+
+    // Inlined uses are found by their value, shorter placeholders are too likely to equal unrelated string literals
+    private static final int MIN_PLACEHOLDER_LENGTH = 8;
+
+    private final Project project;
+    private final FileTree sources;
+    private final File cacheFile;
+    private final File keyIndexFile;
+    private long startTime;
+
+    private String constantsFingerprint;
+    private InjectionState keyIndex;
+
+    public ClassConstantInjector(Project project, FileTree sources, String name) {
+        this.project = project;
+        this.sources = sources;
+        this.cacheFile = new File(project.getBuildDir(), name + "/constantscache.txt");
+        this.keyIndexFile = new File(project.getBuildDir(), name + "/bytecodekeyindex.txt");
+    }
+
+    private ConstantsExtension getExtension() {
+        return project.getExtensions().getByType(ConstantsExtension.class);
+    }
+
+    // Remembers the constants used per source file, so that only changed files are scanned
+    public File getKeyIndexFile() {
+        return keyIndexFile;
+    }
+
+    // The values of the constants used by the sources, an input of the compile task so that a changed constant is not
+    // hidden by outputs restored from the build cache. Computed once per build.
+    public synchronized String getConstantsFingerprint() {
+        ConstantsExtension extension = getExtension();
+        if (extension.getMode() != InjectionMode.BYTECODE || extension.getAnnotation() == null) return "";
+
+        if (constantsFingerprint == null) {
+            keyIndex = ConstantKeyScanner.scanTree(extension, sources, keyIndexFile);
+            Map<String, Object> values = new TreeMap<>();
+            for (String key : keyIndex.getKeys()) {
+                values.put(key, extension.resolveConstant(key));
+            }
+            constantsFingerprint = extension.getConfigurationFingerprint() + "\n" + ConstantsCache.fingerprint(values);
+        }
+        return constantsFingerprint;
+    }
+
+    // Must run as first action of the compile task, so that we know which classes were compiled by it. The key index
+    // is written here, computing the inputs has no side effects.
+    public synchronized void start(Task task) {
+        startTime = System.currentTimeMillis();
+        if (keyIndex != null) {
+            keyIndex.write(keyIndexFile);
+        }
+    }
+
+    public boolean checkUpToDate(Task task) {
+        ConstantsExtension extension = getExtension();
+        if (extension.getMode() != InjectionMode.BYTECODE) return true;
+
+        Map<String, String> cached = ConstantsCache.read(cacheFile);
+        return cached != null && !ConstantsCache.changed(cached, extension);
+    }
+
+    @Override
+    public void execute(Task task) {
+        ConstantsExtension extension = getExtension();
+        if (extension.getMode() != InjectionMode.BYTECODE || extension.getAnnotation() == null) return;
+
+        File classesDir = ((JavaCompile) task).getDestinationDir();
+
+        Map<String, String> cached = ConstantsCache.read(cacheFile);
+        boolean all = cached == null || ConstantsCache.changed(cached, extension);
+
+        // When constants changed, classes that were not recompiled may still contain old values, so we must check
+        // all classes. Otherwise only the classes that were just compiled can contain placeholders.
+        List<File> classes = new ArrayList<>();
+        collectClasses(classesDir, all ? Long.MIN_VALUE : startTime - MODIFICATION_TIME_TOLERANCE, classes);
+
+        Map<String, String> computed = new HashMap<>();
+        if (!all) computed.putAll(cached);
+
+        String annotationDesc = "L" + extension.getAnnotation().replace('.', '/') + ";";
+        ByteSearch annotationSearch = new ByteSearch(annotationDesc);
+
+        Map<String, String> replacements = new HashMap<>();
+        Set<String> ambiguous = new HashSet<>();
+
+        try {
+            for (File file : classes) {
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                if (!annotationSearch.containedIn(bytes)) continue;
+
+                ClassNode node = new ClassNode();
+                new ClassReader(bytes).accept(node, 0);
+
+                if (injectFields(node, annotationDesc, extension, computed, replacements, ambiguous)) {
+                    writeClass(file, node);
+                }
+            }
+
+            for (String amb : ambiguous) {
+                project.getLogger().warn(
+                    "Constant placeholder \"{}\" is used by multiple injected fields with different values, inlined uses of these fields can't be injected. Use unique placeholder values.",
+                    amb
+                );
+                replacements.remove(amb);
+            }
+
+            if (!replacements.isEmpty()) {
+                List<ByteSearch> searches = new ArrayList<>();
+                for (String old : replacements.keySet()) {
+                    searches.add(new ByteSearch(modifiedUtf8(old)));
+                }
+
+                for (File file : classes) {
+                    byte[] bytes = Files.readAllBytes(file.toPath());
+                    if (searches.stream().noneMatch(search -> search.containedIn(bytes))) continue;
+
+                    ClassNode node = new ClassNode();
+                    new ClassReader(bytes).accept(node, 0);
+
+                    if (injectInlinedUses(node, replacements, project)) {
+                        writeClass(file, node);
+                    }
+                }
+            }
+        } catch (IOException exc) {
+            exc.printStackTrace();
+            throw new UncheckedIOException(exc);
+        }
+
+        ConstantsCache.write(cacheFile, computed);
+    }
+
+    private boolean injectFields(ClassNode node, String annotationDesc, ConstantsExtension extension,
+                                 Map<String, String> computed, Map<String, String> replacements, Set<String> ambiguous) {
+        boolean changed = false;
+        for (FieldNode field : node.fields) {
+            String name = findConstantName(field, annotationDesc, extension.getAnnotationField());
+            if (name == null) continue;
+
+            Object fv = extension.resolveConstant(name);
+            computed.put(name, fv == null ? null : fv.toString());
+
+            Object value;
+            try {
+                value = constantValue(fv, field.desc);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidUserDataException(
+                    "Can't inject constant '" + name + "' into field " + node.name.replace('/', '.') + "." + field.name
+                        + ": " + e.getMessage(), e
+                );
+            }
+            if (value == null) continue;
+
+            if (field.value == null) {
+                project.getLogger().warn(
+                    "Field {}.{} is not initialized with a constant, cannot inject '{}' into its bytecode",
+                    node.name.replace('/', '.'), field.name, name
+                );
+                continue;
+            }
+
+            Object old = field.value;
+            if (old.equals(value)) continue;
+
+            field.value = value;
+            changed = true;
+
+            if (old instanceof String && ((String) old).length() < MIN_PLACEHOLDER_LENGTH) {
+                project.getLogger().warn(
+                    "Field {}.{} has placeholder \"{}\", which is shorter than {} characters. Uses of it that javac inlined in other classes can't be injected, use a longer and unique placeholder.",
+                    node.name.replace('/', '.'), field.name, old, MIN_PLACEHOLDER_LENGTH
+                );
+            } else if (old instanceof String) {
+                String prev = replacements.put((String) old, (String) value);
+                if (prev != null && !prev.equals(value)) {
+                    ambiguous.add((String) old);
+                }
+            } else {
+                project.getLogger().warn(
+                    "Field {}.{} is a primitive constant, uses of it that javac inlined in other classes can't be injected",
+                    node.name.replace('/', '.'), field.name
+                );
+            }
+        }
+        return changed;
+    }
+
+    private static String findConstantName(FieldNode field, String annotationDesc, String annotationField) {
+        if ((field.access & 0x0018) != 0x0018) return null; // Not static final
+
+        String name = findConstantName(field.invisibleAnnotations, annotationDesc, annotationField);
+        if (name == null) {
+            name = findConstantName(field.visibleAnnotations, annotationDesc, annotationField);
+        }
+        return name;
+    }
+
+    private static String findConstantName(List<AnnotationNode> annotations, String annotationDesc, String annotationField) {
+        if (annotations == null) return null;
+        for (AnnotationNode annotation : annotations) {
+            if (!annotation.desc.equals(annotationDesc) || annotation.values == null) continue;
+            for (int i = 0; i + 1 < annotation.values.size(); i += 2) {
+                if (annotationField.equals(annotation.values.get(i))) {
+                    Object value = annotation.values.get(i + 1);
+                    return value instanceof String ? (String) value : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Object constantValue(Object value, String desc) {
+        if (value == null) return null;
+        switch (desc) {
+            case "Ljava/lang/String;": return value.toString();
+            // Class files store constants of types smaller than int as int
+            case "Z": return (Boolean) ConstantLiterals.convert(value, "boolean") ? 1 : 0;
+            case "C": return (int) (Character) ConstantLiterals.convert(value, "char");
+            case "B": return ((Byte) ConstantLiterals.convert(value, "byte")).intValue();
+            case "S": return ((Short) ConstantLiterals.convert(value, "short")).intValue();
+            case "I": return ConstantLiterals.convert(value, "int");
+            case "J": return ConstantLiterals.convert(value, "long");
+            case "F": return ConstantLiterals.convert(value, "float");
+            case "D": return ConstantLiterals.convert(value, "double");
+            default: return null;
+        }
+    }
+
+    private static boolean injectInlinedUses(ClassNode node, Map<String, String> replacements, Project project) {
+        boolean changed = false;
+        Set<String> folded = new TreeSet<>();
+        for (MethodNode method : node.methods) {
+            for (AbstractInsnNode insn : method.instructions.toArray()) {
+                if (insn instanceof LdcInsnNode) {
+                    LdcInsnNode ldc = (LdcInsnNode) insn;
+                    if (ldc.cst instanceof String) {
+                        String repl = replacements.get(ldc.cst);
+                        if (repl != null) {
+                            ldc.cst = repl;
+                            changed = true;
+                        } else {
+                            findFolded((String) ldc.cst, replacements, folded);
+                        }
+                    }
+                }
+            }
+        }
+        for (FieldNode field : node.fields) {
+            // Constants initialized with an injected constant
+            if (field.value instanceof String) {
+                String repl = replacements.get(field.value);
+                if (repl != null) {
+                    field.value = repl;
+                    changed = true;
+                } else {
+                    findFolded((String) field.value, replacements, folded);
+                }
+            }
+        }
+
+        for (String placeholder : folded) {
+            project.getLogger().warn(
+                "Class {} contains a string that includes placeholder \"{}\" but is not equal to it. Javac probably folded an injected constant into a larger constant expression, which can't be injected.",
+                node.name.replace('/', '.'), placeholder
+            );
+        }
+        return changed;
+    }
+
+    // Finds placeholders that are part of a string constant, which is what javac makes of expressions like
+    // "prefix" + CONSTANT
+    private static void findFolded(String cst, Map<String, String> replacements, Set<String> folded) {
+        for (String placeholder : replacements.keySet()) {
+            if (cst.contains(placeholder)) {
+                folded.add(placeholder);
+            }
+        }
+    }
+
+    private static void collectClasses(File dir, long since, List<File> out) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectClasses(file, since, out);
+            } else if (file.getName().endsWith(".class") && file.lastModified() >= since) {
+                out.add(file);
+            }
+        }
+    }
+
+    private static void writeClass(File file, ClassNode node) throws IOException {
+        ClassWriter writer = new ClassWriter(0);
+        node.accept(writer);
+        Files.write(file.toPath(), writer.toByteArray());
+    }
+
+    // Class files store strings in modified UTF-8
+    private static byte[] modifiedUtf8(String str) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new DataOutputStream(baos).writeUTF(str);
+            return Arrays.copyOfRange(baos.toByteArray(), 2, baos.size());
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Writes a file, but only modifies it from the first byte that differs from its current contents. When the new
+// contents are the same as the current contents, the file is not modified at all, and its modification time is kept.
+// The new contents are only complete once the stream is committed.
+public class ComparingOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final byte[] compareBuffer = new byte[BUFFER_SIZE];
+    private InputStream existing;
+    private FileChannel channel;
+    private OutputStream out;
+    private long position;
+    private boolean changed;
+    private boolean closed;
+
+    public ComparingOutputStream(File file) throws IOException {
+        this.file = file;
+        if (file.isFile()) {
+            existing = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        } else {
+            startWriting();
+        }
+    }
+
+    // Whether the file was modified
+    public boolean isChanged() {
+        return changed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (out == null) {
+            int matched = compare(b, off, len);
+            position += matched;
+            if (matched == len) return;
+
+            startWriting();
+            off += matched;
+            len -= matched;
+        }
+
+        out.write(b, off, len);
+        position += len;
+    }
+
+    // Returns how many of the given bytes match the next bytes of the current contents
+    private int compare(byte[] b, int off, int len) throws IOException {
+        int matched = 0;
+        while (matched < len) {
+            int read = existing.read(compareBuffer, 0, Math.min(len - matched, compareBuffer.length));
+            if (read < 0) return matched;
+
+            for (int i = 0; i < read; i++) {
+                if (compareBuffer[i] != b[off + matched + i]) return matched + i;
+            }
+            matched += read;
+        }
+        return matched;
+    }
+
+    private void startWriting() throws IOException {
+        if (existing != null) {
+            existing.close();
+            existing = null;
+        }
+
+        changed = true;
+        file.getParentFile().mkdirs();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        channel.position(position);
+        out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) out.flush();
+    }
+
+    // Finishes writing the file. Must be called after everything was written, closing the stream without committing
+    // discards what was written.
+    public void commit() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        closed = true;
+
+        if (out == null) {
+            // Everything matched so far, but the current contents may be longer
+            boolean longer;
+            try {
+                longer = existing.read() >= 0;
+            } finally {
+                existing.close();
+            }
+
+            if (longer) {
+                changed = true;
+                try (FileChannel truncate = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    truncate.truncate(position);
+                }
+            }
+        } else {
+            try {
+                out.flush();
+                channel.truncate(position);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // Closes the stream. When it was not committed, for example because writing failed, a file that was not modified
+    // yet is kept as it was, and a file that was modified is deleted, as it has neither the old nor the new contents.
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        if (out == null) {
+            existing.close();
+        } else {
+            try {
+                out.close();
+            } finally {
+                file.delete();
+            }
+        }
+    }
+}
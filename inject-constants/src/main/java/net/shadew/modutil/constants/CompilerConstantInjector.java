@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.tasks.Input;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+// Passes constants to the javac plugin of the COMPILER injection mode. The constants the sources use are found by
+// scanning them before compiling, their values are inputs of the compile task.
+public class CompilerConstantInjector implements CommandLineArgumentProvider {
+    private final Project project;
+    private final FileTree sources;
+    private final File constantsFile;
+    private final File keyIndexFile;
+
+    private Map<String, Object> constants;
+    private InjectionState keyIndex;
+
+    public CompilerConstantInjector(Project project, FileTree sources, String name) {
+        this.project = project;
+        this.sources = sources;
+        this.constantsFile = new File(project.getBuildDir(), name + "/compilerconstants.properties");
+        this.keyIndexFile = new File(project.getBuildDir(), name + "/keyindex.txt");
+    }
+
+    private ConstantsExtension getExtension() {
+        return project.getExtensions().getByType(ConstantsExtension.class);
+    }
+
+    private boolean isActive() {
+        ConstantsExtension extension = getExtension();
+        return extension.getMode() == InjectionMode.COMPILER && extension.getAnnotation() != null;
+    }
+
+    // Remembers the constants used per source file, so that only changed files are scanned
+    public File getKeyIndexFile() {
+        return keyIndexFile;
+    }
+
+    @Input
+    public String getConstantsFingerprint() {
+        if (!isActive()) return "";
+        return getExtension().getConfigurationFingerprint() + "\n" + ConstantsCache.fingerprint(getConstants());
+    }
+
+    // The constants used by the sources, scanned once per build
+    private synchronized Map<String, Object> getConstants() {
+        if (constants == null) {
+            ConstantsExtension extension = getExtension();
+            keyIndex = ConstantKeyScanner.scanTree(extension, sources, keyIndexFile);
+            Map<String, Object> values = new TreeMap<>();
+            for (String key : keyIndex.getKeys()) {
+                values.put(key, extension.resolveConstant(key));
+            }
+            constants = values;
+        }
+        return constants;
+    }
+
+    // Must run as first action of the compile task, the javac plugin reads the constants from a file. The key index is
+    // written here too, computing the inputs has no side effects.
+    public void prepare(Task task) {
+        if (!isActive()) return;
+
+        ConstantsExtension extension = getExtension();
+        try {
+            new CompilerConstants(extension.getAnnotation(), extension.getAnnotationField(), getConstants()).write(constantsFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        keyIndex.write(keyIndexFile);
+    }
+
+    @Override
+    public Iterable<String> asArguments() {
+        if (!isActive()) return Collections.emptyList();
+        return Collections.singletonList("-Xplugin:" + ConstantsCompilerPlugin.NAME + " " + constantsFile.toURI());
+    }
+
+    // The location of the javac plugin, which must be on the annotation processor path of the compile task
+    public Callable<Object> getPluginPath() {
+        return () -> {
+            if (!isActive()) return Collections.emptyList();
+            try {
+                return new File(ConstantsCompilerPlugin.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+}
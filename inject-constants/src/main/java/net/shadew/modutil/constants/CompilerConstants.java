@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// The constants passed to the javac plugin in the COMPILER injection mode. This class is loaded by javac, so it must
+// not use Gradle classes.
+public class CompilerConstants {
+    private static final String ANNOTATION = "annotation";
+    private static final String ANNOTATION_FIELD = "annotationField";
+    private static final String CONSTANT_PREFIX = "constant.";
+
+    private final String annotation;
+    private final String annotationField;
+    private final Map<String, Object> constants;
+
+    public CompilerConstants(String annotation, String annotationField, Map<String, Object> constants) {
+        this.annotation = annotation;
+        this.annotationField = annotationField;
+        this.constants = constants;
+    }
+
+    public String getAnnotation() {
+        return annotation;
+    }
+
+    public String getAnnotationField() {
+        return annotationField;
+    }
+
+    public Object getConstant(String name) {
+        return constants.get(name);
+    }
+
+    // Values are stored with their type, so that the same literals are injected as in the SOURCE mode
+    public void write(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(ANNOTATION, annotation);
+        properties.setProperty(ANNOTATION_FIELD, annotationField);
+        constants.forEach((name, value) -> {
+            if (value != null) {
+                properties.setProperty(CONSTANT_PREFIX + name, typeOf(value) + ":" + value);
+            }
+        });
+
+        file.getParentFile().mkdirs();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            properties.store(out, null);
+        }
+    }
+
+    public static CompilerConstants read(File file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            properties.load(in);
+        }
+
+        Map<String, Object> constants = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(CONSTANT_PREFIX)) {
+                constants.put(key.substring(CONSTANT_PREFIX.length()), parse(properties.getProperty(key)));
+            }
+        }
+        return new CompilerConstants(properties.getProperty(ANNOTATION), properties.getProperty(ANNOTATION_FIELD), constants);
+    }
+
+    private static char typeOf(Object value) {
+        if (value instanceof CharSequence) return 'S';
+        if (value instanceof Boolean) return 'Z';
+        if (value instanceof Character) return 'C';
+        if (value instanceof Byte) return 'B';
+        if (value instanceof Short) return 'H';
+        if (value instanceof Integer) return 'I';
+        if (value instanceof Long) return 'J';
+        if (value instanceof Float) return 'F';
+        if (value instanceof Double) return 'D';
+        if (value instanceof Number) return 'N';
+        return 'O';
+    }
+
+    // Other numbers, like BigInteger, are read back as BigDecimal, which converts to the same field types. Values of
+    // other types are kept as their string form, they can only be injected into String fields.
+    private static Object parse(String str) {
+        String value = str.substring(2);
+        switch (str.charAt(0)) {
+            case 'Z': return Boolean.valueOf(value);
+            case 'C': return value.charAt(0);
+            case 'B': return Byte.valueOf(value);
+            case 'H': return Short.valueOf(value);
+            case 'I': return Integer.valueOf(value);
+            case 'J': return Long.valueOf(value);
+            case 'F': return Float.valueOf(value);
+            case 'D': return Double.valueOf(value);
+            case 'N': return new BigDecimal(value);
+            case 'S': return value;
+            default: return new OtherValue(value);
+        }
+    }
+
+    public static class OtherValue {
+        private final String value;
+
+        OtherValue(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+}
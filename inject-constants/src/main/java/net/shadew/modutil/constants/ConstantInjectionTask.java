@@ -18,31 +18,48 @@ package net.shadew.modutil.constants;
 
 import org.gradle.api.InvalidUserDataException;
 import org.gradle.api.internal.file.copy.CopyActionExecuter;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Copy;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.LocalState;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.WorkResult;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
-import java.util.HashMap;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
+@CacheableTask
 public class ConstantInjectionTask extends Copy {
     private boolean ignoreCache;
+    private String encoding = "UTF-8";
+    private boolean incremental = true;
+    private int threads = 1;
+    private File blobDir;
+
+    // The constants found while computing the inputs, null when the inputs were not computed
+    private Set<String> fingerprintedKeys;
+    private String constantsFingerprint;
+    private InjectionState keyIndex;
 
-    @SuppressWarnings("unchecked")
     public ConstantInjectionTask() {
-        getOutputs().upToDateWhen(o -> checkUpToDate());
+        getOutputs().upToDateWhen(o -> !ignoreCache);
+        getOutputs().cacheIf(o -> !ignoreCache);
     }
 
     public void setIgnoreCache(boolean ignoreCache) {
         this.ignoreCache = ignoreCache;
     }
 
+    @Internal
     public boolean getIgnoreCache() {
         return ignoreCache;
     }
@@ -55,44 +72,145 @@ public class ConstantInjectionTask extends Copy {
         setIgnoreCache(true);
     }
 
-    private boolean checkUpToDate() {
-        if (ignoreCache) return false;
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
 
-        File cache = new File(getProject().getBuildDir(), getName() + "/constantscache.txt");
-        if (!cache.exists()) return false;
+    @Internal
+    public boolean getIncremental() {
+        return incremental;
+    }
 
-        Map<String, String> fileConsts = new HashMap<>();
-        Pattern separatorPattern = Pattern.compile("(?<!\\\\)=");
+    public void incremental(boolean on) {
+        setIncremental(on);
+    }
 
-        try (Scanner scanner = new Scanner(cache)) {
-            while (scanner.hasNextLine()) {
-                String ln = scanner.nextLine();
-                Matcher matcher = separatorPattern.matcher(ln);
-                String key, value = null;
-                if (matcher.find()) {
-                    key = ln.substring(0, matcher.start());
-                    value = ln.substring(matcher.end());
-                } else {
-                    key = ln;
-                }
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 
-                fileConsts.put(key, value);
-            }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+    @Internal
+    public int getThreads() {
+        return threads;
+    }
+
+    public void threads(int threads) {
+        setThreads(threads);
+    }
+
+    public void parallel() {
+        setThreads(Runtime.getRuntime().availableProcessors());
+    }
+
+    // The encoding of the Java sources, the plugin uses the encoding of the compile task when it has one
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    @Input
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public void encoding(String encoding) {
+        setEncoding(encoding);
+    }
+
+    public void setBlobDir(File blobDir) {
+        this.blobDir = blobDir;
+    }
+
+    @Optional
+    @OutputDirectory
+    public File getBlobDir() {
+        return blobDir;
+    }
+
+    public void blobDir(File blobDir) {
+        setBlobDir(blobDir);
+    }
+
+    // The cache and state files are outputs so that they are restored from the build cache together with the
+    // injected files, a next incremental run must compare against what is actually in the destination directory
+    @OutputFile
+    public File getCacheFile() {
+        return new File(getProject().getBuildDir(), getName() + "/constantscache.txt");
+    }
+
+    @OutputFile
+    public File getStateFile() {
+        return new File(getProject().getBuildDir(), getName() + "/injectionstate.txt");
+    }
+
+    // The key index is only written when the task runs, computing the inputs has no side effects
+    @LocalState
+    public File getKeyIndexFile() {
+        return new File(getProject().getBuildDir(), getName() + "/keyindex.txt");
+    }
+
+    @Input
+    public String getConfigurationFingerprint() {
+        return getProject().getExtensions().getByType(ConstantsExtension.class).getConfigurationFingerprint();
+    }
+
+    // A hash of the values of all constants the copied files may use. The constants used by a file are only known
+    // after scanning it, so we remember them per file in a key index and only scan files that changed since.
+    @Input
+    public synchronized String getConstantsFingerprint() {
+        if (constantsFingerprint != null) return constantsFingerprint;
 
         ConstantsExtension extension = getProject().getExtensions().getByType(ConstantsExtension.class);
-        for (Map.Entry<String, String> e : fileConsts.entrySet()) {
-            Object c = extension.getConstant(e.getKey());
-            String cval = c == null ? null : c.toString();
-            if (!Objects.equals(e.getValue(), cval)) {
-                return false;
-            }
+        String configuration = extension.getConfigurationFingerprint();
+
+        InjectionState index = InjectionState.read(getKeyIndexFile());
+        if (index != null && !index.getConfiguration().equals(configuration)) {
+            index = null;
+        }
+
+        ConstantKeyScanner scanner = new ConstantKeyScanner(extension);
+        InjectionState newIndex = new InjectionState(configuration);
+        Set<String> keys = new TreeSet<>();
+
+        Set<String> resourceKeys = new HashSet<>();
+
+        InjectionState previousIndex = index;
+        getRootSpec().walk(resolver -> resolver.getSource().visit(details -> {
+            if (details.isDirectory()) return;
+
+            String path = resolver.getDestPath().append(details.getRelativePath()).getPathString();
+            Set<String> fileKeys = scanner.scan(path, details, previousIndex, newIndex);
+            keys.addAll(fileKeys);
+            if (!path.endsWith(".java")) resourceKeys.addAll(fileKeys);
+        }));
+
+        keyIndex = newIndex;
+        fingerprintedKeys = keys;
+
+        // Java sources only refer to volatile constants, so their values only matter when resources use them
+        Map<String, Object> values = new TreeMap<>();
+        for (String key : keys) {
+            boolean referenced = extension.isVolatile(key) && !resourceKeys.contains(key);
+            values.put(key, referenced ? "volatile" : extension.resolveConstant(key));
         }
+        constantsFingerprint = ConstantsCache.fingerprint(values);
+        return constantsFingerprint;
+    }
 
-        return true;
+    private Map<String, String> readConstantsCache() {
+        return ConstantsCache.read(getCacheFile());
+    }
+
+    private Set<String> changedConstants(Map<String, String> fileConsts) {
+        ConstantsExtension extension = getProject().getExtensions().getByType(ConstantsExtension.class);
+        return ConstantsCache.changedKeys(fileConsts, extension);
+    }
+
+    // Checks whether the outputs of the last run can be kept for files that did not change since then. If not,
+    // everything must be injected again. Changed constants don't prevent reuse, only the files that use them are
+    // injected again.
+    private boolean canReuse(InjectionState state) {
+        ConstantsExtension extension = getProject().getExtensions().getByType(ConstantsExtension.class);
+        return state.getConfiguration().equals(InjectingCopyAction.getConfiguration(extension, Charset.forName(encoding)));
     }
 
     @Override
@@ -109,30 +227,58 @@ public class ConstantInjectionTask extends Copy {
     protected void copy() {
         CopyActionExecuter copyActionExecuter = createCopyActionExecuter();
         InjectingCopyAction copyAction = createCopyAction();
+        copyAction.setThreads(threads);
+        copyAction.setBlobDir(blobDir);
+        copyAction.setCharset(Charset.forName(encoding));
+
+        // The previous state is also needed when not injecting incrementally, to delete outputs of removed files
+        boolean reuse = false;
+        InjectionState previousState = InjectionState.read(getStateFile());
+        if (previousState != null) {
+            Map<String, String> fileConsts = readConstantsCache();
+            reuse = incremental && !ignoreCache && fileConsts != null && canReuse(previousState);
+            if (reuse) {
+                Set<String> changed = changedConstants(fileConsts);
+                Set<String> invalidated = previousState.getFilesUsing(changed);
+                if (!changed.isEmpty()) {
+                    getLogger().info("{} constants changed, {} files using them are injected again", changed.size(), invalidated.size());
+                }
+                copyAction.setPreviousState(previousState, fileConsts, invalidated);
+            } else {
+                copyAction.setPreviousState(previousState, null, Collections.emptySet());
+            }
+        }
+
         WorkResult didWork = copyActionExecuter.execute(getRootSpec(), copyAction);
         setDidWork(didWork.getDidWork());
 
-        if (getDidWork() && !ignoreCache) {
-            Map<String, String> computed = copyAction.getComputedConstants();
-            File cacheFile = new File(getProject().getBuildDir(), getName() + "/constantscache.txt");
-
-            cacheFile.getParentFile().mkdirs();
-            try (PrintStream stream = new PrintStream(cacheFile)) {
-                for (Map.Entry<String, String> e : computed.entrySet()) {
-                    String n = e.getKey().replace("=", "\\=");
-                    String v = e.getValue();
-
-                    stream.print(n);
-                    if (v != null) {
-                        stream.print("=");
-                        stream.print(v);
-                    }
-                    stream.println();
-                }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                throw new RuntimeException(e);
+        if (reuse) {
+            getLogger().info("Injected constants incrementally, {} unchanged files were skipped", copyAction.getSkipped());
+        }
+
+        getLogger().info(
+            "{} of {} processed Java files don't use the constant annotation and were copied without parsing",
+            copyAction.getUnparsedJavaFiles(), copyAction.getJavaFiles()
+        );
+
+        for (String key : copyAction.getComputedConstants().keySet()) {
+            if (fingerprintedKeys != null && !fingerprintedKeys.contains(key)) {
+                getLogger().warn(
+                    "Constant '{}' was injected but not found when computing the inputs of {}, changes to it may not be " +
+                    "detected by the build cache", key, getPath()
+                );
             }
         }
+
+        if (copyAction.getUnchangedOutputs() > 0) {
+            getLogger().info("{} outputs already had the right contents and were not written", copyAction.getUnchangedOutputs());
+        }
+
+        // The state and the constants cache describe the same run, a next run needs both to decide what to reuse
+        copyAction.getState().write(getStateFile());
+        ConstantsCache.write(getCacheFile(), copyAction.getComputedConstants());
+        if (keyIndex != null) {
+            keyIndex.write(getKeyIndexFile());
+        }
     }
 }
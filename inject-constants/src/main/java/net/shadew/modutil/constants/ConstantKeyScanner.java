@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.gradle.api.file.FileTree;
+import org.gradle.api.file.FileVisitDetails;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// Finds the names of the constants a file may need, without injecting it. This finds at least every constant that
+// injection would look up, and possibly more: it does not parse Java sources but looks at the arguments of anything
+// that looks like a use of the constant annotation.
+public class ConstantKeyScanner {
+    private final String annotationName;
+    private final ByteSearch annotationSearch;
+    private final String annotationField;
+    private final ResourceRewriter resourceRewriter;
+
+    public ConstantKeyScanner(ConstantsExtension extension) {
+        String annotation = extension.getAnnotation();
+        annotationName = annotation == null ? null : annotation.substring(annotation.lastIndexOf('.') + 1);
+        annotationSearch = annotationName == null ? null : new ByteSearch(annotationName);
+        annotationField = extension.getAnnotationField();
+        resourceRewriter = new ResourceRewriter(extension.getResourcePatterns(), extension.getResourceMatchLimit());
+    }
+
+    // Scans all files of the given tree for the constants they may need, and returns the keys found per file. Only files
+    // that changed since the scan that wrote the given index file are scanned again. The returned index is not written,
+    // callers write it to the index file when their task runs.
+    public static InjectionState scanTree(ConstantsExtension extension, FileTree tree, File indexFile) {
+        String configuration = extension.getConfigurationFingerprint();
+
+        InjectionState index = InjectionState.read(indexFile);
+        if (index != null && !index.getConfiguration().equals(configuration)) {
+            index = null;
+        }
+
+        ConstantKeyScanner scanner = new ConstantKeyScanner(extension);
+        InjectionState newIndex = new InjectionState(configuration);
+
+        InjectionState previousIndex = index;
+        tree.visit(details -> {
+            if (details.isDirectory()) return;
+            scanner.scan(details.getPath(), details, previousIndex, newIndex);
+        });
+        return newIndex;
+    }
+
+    // Scans the given file, unless the given index has keys for it and it did not change since. The keys are put in the
+    // new index.
+    public Set<String> scan(String path, FileVisitDetails details, InjectionState index, InjectionState newIndex) {
+        long size = details.getSize();
+        long lastModified = details.getLastModified();
+
+        InjectionState.FileState state = index == null ? null : index.getFile(path);
+        if (state == null || !state.matches(size, lastModified)) {
+            try {
+                state = new InjectionState.FileState(size, lastModified, scan(path, details.getFile()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        newIndex.putFile(path, state);
+        return state.getKeys();
+    }
+
+    public Set<String> scan(String path, File file) throws IOException {
+        Set<String> keys = new LinkedHashSet<>();
+        if (path.endsWith(".java")) {
+            scanJava(Files.readAllBytes(file.toPath()), keys);
+        } else {
+            ResourceRewriter.ContentMatcher matcher = resourceRewriter.forPath(path);
+            if (matcher != null) {
+                try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                    matcher.rewrite(in, new DiscardingWriter(), name -> {
+                        keys.add(name);
+                        return null;
+                    });
+                }
+            }
+        }
+        return keys;
+    }
+
+    private void scanJava(byte[] raw, Set<String> keys) {
+        if (annotationSearch == null || !annotationSearch.containedIn(raw)) return;
+
+        String source = new String(raw, StandardCharsets.UTF_8);
+        int pos = source.indexOf(annotationName);
+        while (pos >= 0) {
+            int end = pos + annotationName.length();
+            boolean startsName = pos == 0 || !Character.isJavaIdentifierPart(source.charAt(pos - 1));
+            if (startsName && (end == source.length() || !Character.isJavaIdentifierPart(source.charAt(end)))) {
+                int open = end;
+                while (open < source.length() && Character.isWhitespace(source.charAt(open))) open++;
+                if (open < source.length() && source.charAt(open) == '(') {
+                    scanArguments(source, open + 1, keys);
+                }
+            }
+            pos = source.indexOf(annotationName, end);
+        }
+    }
+
+    // Adds the value of the annotation field among the given arguments. Roaster reports annotation values as their
+    // source text with surrounding quotes removed, so that is what we add.
+    private void scanArguments(String source, int from, Set<String> keys) {
+        int depth = 0;
+        int argStart = from;
+        for (int pos = from; pos < source.length(); pos++) {
+            char c = source.charAt(pos);
+            if (c == '"' || c == '\'') {
+                pos = skipLiteral(source, pos);
+            } else if (c == '(' || c == '{' || c == '[') {
+                depth++;
+            } else if (depth > 0 && (c == ')' || c == '}' || c == ']')) {
+                depth--;
+            } else if (depth == 0 && (c == ',' || c == ')')) {
+                addArgument(source.substring(argStart, Math.min(pos, source.length())), keys);
+                if (c == ')') return;
+                argStart = pos + 1;
+            }
+        }
+    }
+
+    private void addArgument(String argument, Set<String> keys) {
+        String name = "value";
+        String value = argument.trim();
+
+        int eq = value.indexOf('=');
+        if (eq > 0 && !value.startsWith("\"") && (eq + 1 == value.length() || value.charAt(eq + 1) != '=')) {
+            String before = value.substring(0, eq).trim();
+            if (isIdentifier(before)) {
+                name = before;
+                value = value.substring(eq + 1).trim();
+            }
+        }
+
+        if (!name.equals(annotationField) || value.isEmpty()) return;
+
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            keys.add(value.substring(1, value.length() - 1));
+        } else {
+            keys.add(value);
+        }
+    }
+
+    private static boolean isIdentifier(String str) {
+        if (str.isEmpty() || !Character.isJavaIdentifierStart(str.charAt(0))) return false;
+        for (int i = 1, l = str.length(); i < l; i++) {
+            if (!Character.isJavaIdentifierPart(str.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    // Returns the position of the closing quote of the literal starting at the given position
+    private static int skipLiteral(String source, int pos) {
+        char quote = source.charAt(pos);
+        pos++;
+        while (pos < source.length()) {
+            char c = source.charAt(pos);
+            if (c == '\\') {
+                pos += 2;
+            } else if (c == quote || c == '\n') {
+                return pos;
+            } else {
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+    private static class DiscardingWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.constants;
+
+import java.math.BigDecimal;
+
+public final class ConstantLiterals {
+    private ConstantLiterals() {
+    }
+
+    // Returns the Java literal to initialize a field of the given type with, or null if there is no value. Throws an
+    // IllegalArgumentException when the value can't be converted to the type of the field.
+    public static String literal(Object value, String fieldType) {
+        Object converted = convert(value, fieldType);
+        return converted == null ? null : literal(converted);
+    }
+
+    // Returns the Java literal of a value that is already converted to the type of its field
+    public static String literal(Object value) {
+        if (value instanceof String) {
+            return string((String) value);
+        } else if (value instanceof Boolean || value instanceof Integer) {
+            return value + "";
+        } else if (value instanceof Byte) {
+            return "(byte) " + value;
+        } else if (value instanceof Short) {
+            return "(short) " + value;
+        } else if (value instanceof Character) {
+            return character((Character) value);
+        } else if (value instanceof Long) {
+            return value + "L";
+        } else if (value instanceof Float) {
+            float f = (Float) value;
+            if (Float.isNaN(f)) return "java.lang.Float.NaN";
+            if (Float.isInfinite(f)) return f > 0 ? "java.lang.Float.POSITIVE_INFINITY" : "java.lang.Float.NEGATIVE_INFINITY";
+            return value + "F";
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            if (Double.isNaN(d)) return "java.lang.Double.NaN";
+            if (Double.isInfinite(d)) return d > 0 ? "java.lang.Double.POSITIVE_INFINITY" : "java.lang.Double.NEGATIVE_INFINITY";
+            return value + "D";
+        }
+        return null;
+    }
+
+    // Converts a value to the type of the field it is injected into, so that primitive fields get a literal of their
+    // own type and remain compile-time constants. Fields of other types get a literal of the type of the value, as long
+    // as the field can hold it.
+    public static Object convert(Object value, String fieldType) {
+        if (value == null) return null;
+
+        switch (fieldType) {
+            case "java.lang.String":
+            case "String":
+                return value.toString();
+            case "boolean":
+            case "java.lang.Boolean":
+            case "Boolean":
+                return toBoolean(value, fieldType);
+            case "char":
+            case "java.lang.Character":
+            case "Character":
+                return toChar(value, fieldType);
+            case "byte":
+            case "java.lang.Byte":
+            case "Byte":
+                return (byte) toIntegral(value, fieldType, Byte.MIN_VALUE, Byte.MAX_VALUE);
+            case "short":
+            case "java.lang.Short":
+            case "Short":
+                return (short) toIntegral(value, fieldType, Short.MIN_VALUE, Short.MAX_VALUE);
+            case "int":
+            case "java.lang.Integer":
+            case "Integer":
+                return (int) toIntegral(value, fieldType, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            case "long":
+            case "java.lang.Long":
+            case "Long":
+                return toIntegral(value, fieldType, Long.MIN_VALUE, Long.MAX_VALUE);
+            case "float":
+            case "java.lang.Float":
+            case "Float":
+                return (float) toFloating(value, fieldType);
+            case "double":
+            case "java.lang.Double":
+            case "Double":
+                return toFloating(value, fieldType);
+            default:
+                if (literal(value) == null || !isAssignable(value.getClass(), fieldType)) {
+                    throw mismatch(value, fieldType);
+                }
+                return value;
+        }
+    }
+
+    // Checks whether a field of the given type, which may be a simple or a qualified name, can hold values of the given
+    // class. Type arguments are ignored.
+    private static boolean isAssignable(Class<?> type, String fieldType) {
+        int typeArgs = fieldType.indexOf('<');
+        String name = (typeArgs < 0 ? fieldType : fieldType.substring(0, typeArgs)).trim();
+        if (name.equals("Object") || name.equals("java.lang.Object")) return true;
+        return isSubtype(type, name);
+    }
+
+    private static boolean isSubtype(Class<?> type, String name) {
+        if (type == null) return false;
+        if (type.getName().equals(name) || type.getSimpleName().equals(name)) return true;
+        if (isSubtype(type.getSuperclass(), name)) return true;
+        for (Class<?> itf : type.getInterfaces()) {
+            if (isSubtype(itf, name)) return true;
+        }
+        return false;
+    }
+
+    private static boolean toBoolean(Object value, String fieldType) {
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value instanceof CharSequence) {
+            String str = value.toString().trim();
+            if (str.equalsIgnoreCase("true")) return true;
+            if (str.equalsIgnoreCase("false")) return false;
+        }
+        throw mismatch(value, fieldType);
+    }
+
+    private static char toChar(Object value, String fieldType) {
+        if (value instanceof Character) return (Character) value;
+        if (value instanceof CharSequence && ((CharSequence) value).length() == 1) return ((CharSequence) value).charAt(0);
+        if (value instanceof Number) {
+            long code = toIntegral(value, fieldType, Character.MIN_VALUE, Character.MAX_VALUE);
+            return (char) code;
+        }
+        throw mismatch(value, fieldType);
+    }
+
+    private static long toIntegral(Object value, String fieldType, long min, long max) {
+        long result;
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            result = ((Number) value).longValue();
+        } else if (value instanceof Character) {
+            result = (Character) value;
+        } else if (value instanceof Number || value instanceof CharSequence) {
+            // Covers BigInteger, BigDecimal and floating point values, as long as they are whole numbers
+            try {
+                result = new BigDecimal(value.toString().trim()).longValueExact();
+            } catch (ArithmeticException | NumberFormatException e) {
+                throw mismatch(value, fieldType);
+            }
+        } else {
+            throw mismatch(value, fieldType);
+        }
+
+        if (result < min || result > max) {
+            throw new IllegalArgumentException("Value " + value + " is out of range for a field of type " + fieldType);
+        }
+        return result;
+    }
+
+    private static double toFloating(Object value, String fieldType) {
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value instanceof Character) return (Character) value;
+        if (value instanceof CharSequence) {
+            try {
+                return Double.parseDouble(value.toString().trim());
+            } catch (NumberFormatException e) {
+                throw mismatch(value, fieldType);
+            }
+        }
+        throw mismatch(value, fieldType);
+    }
+
+    private static IllegalArgumentException mismatch(Object value, String fieldType) {
+        return new IllegalArgumentException(
+            "Value '" + value + "' of type " + value.getClass().getName() + " can't be converted to a field of type " + fieldType
+        );
+    }
+
+    public static String character(char c) {
+        switch (c) {
+            case '\'': return "'\\''";
+            case '\\': return "'\\\\'";
+            case '\n': return "'\\n'";
+            case '\r': return "'\\r'";
+            case '\t': return "'\\t'";
+            case '\b': return "'\\b'";
+            case '\f': return "'\\f'";
+            default:
+                if (c < 0x20 || c == 0x7F) {
+                    return String.format("'\\u%04X'", (int) c);
+                }
+                return "'" + c + "'";
+        }
+    }
+
+    public static String string(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2);
+        builder.append('"');
+        for (int i = 0, l = value.length(); i < l; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                case '\b': builder.append("\\b"); break;
+                case '\f': builder.append("\\f"); break;
+                default:
+                    if (c < 0x20 || c == 0x7F) {
+                        builder.append(String.format("\\u%04X", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+        return builder.toString();
+    }
+}
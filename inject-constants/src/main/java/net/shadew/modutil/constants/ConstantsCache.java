@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.constants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Reads and writes the constants that were injected in a previous run, to check whether injection must run again
+public final class ConstantsCache {
+    private ConstantsCache() {
+    }
+
+    public static Map<String, String> read(File cache) {
+        if (!cache.exists()) return null;
+
+        Map<String, String> fileConsts = new HashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cache), StandardCharsets.UTF_8))) {
+            String ln;
+            while ((ln = reader.readLine()) != null) {
+                // The key ends at the first unescaped separator, a key without value has none
+                StringBuilder key = new StringBuilder();
+                StringBuilder value = null;
+                StringBuilder builder = key;
+                for (int i = 0, l = ln.length(); i < l; i++) {
+                    char c = ln.charAt(i);
+                    if (c == '\\' && i + 1 < l) {
+                        char n = ln.charAt(++i);
+                        builder.append(n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+                    } else if (c == '=' && value == null) {
+                        value = new StringBuilder();
+                        builder = value;
+                    } else {
+                        builder.append(c);
+                    }
+                }
+
+                fileConsts.put(key.toString(), value == null ? null : value.toString());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new UncheckedIOException(e);
+        }
+
+        return fileConsts;
+    }
+
+    public static void write(File cacheFile, Map<String, String> constants) {
+        Map<String, String> computed = new TreeMap<>(constants);
+
+        cacheFile.getParentFile().mkdirs();
+        try (PrintStream stream = new PrintStream(cacheFile, "UTF-8")) {
+            for (Map.Entry<String, String> e : computed.entrySet()) {
+                String n = escape(e.getKey()).replace("=", "\\=");
+                String v = e.getValue();
+
+                stream.print(n);
+                if (v != null) {
+                    stream.print("=");
+                    stream.print(escape(v));
+                }
+                stream.println();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Every entry is on one line, so line breaks in keys and values are escaped
+    private static String escape(String str) {
+        return str.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    // The constants of which the current value differs from the cached value
+    public static Set<String> changedKeys(Map<String, String> fileConsts, ConstantsExtension extension) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> e : fileConsts.entrySet()) {
+            Object c = extension.resolveConstant(e.getKey());
+            String cval = c == null ? null : c.toString();
+            if (!Objects.equals(e.getValue(), cval)) {
+                changed.add(e.getKey());
+            }
+        }
+        return changed;
+    }
+
+    public static boolean changed(Map<String, String> fileConsts, ConstantsExtension extension) {
+        for (Map.Entry<String, String> e : fileConsts.entrySet()) {
+            Object c = extension.resolveConstant(e.getKey());
+            String cval = c == null ? null : c.toString();
+            if (!Objects.equals(e.getValue(), cval)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // A hash of the given constants and their values, sorted by name
+    public static String fingerprint(Map<String, Object> values) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Map.Entry<String, Object> e : new TreeMap<>(values).entrySet()) {
+                digest.update(e.getKey().getBytes(StandardCharsets.UTF_8));
+                // Distinguish a missing constant from any value
+                if (e.getValue() == null) {
+                    digest.update((byte) 0);
+                } else {
+                    digest.update((byte) 1);
+                    digest.update(e.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update((byte) 0);
+            }
+
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) {
+                builder.append(String.format("%02x", b & 0xFF));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.*;
+
+import javax.lang.model.element.Modifier;
+import javax.tools.Diagnostic;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.Set;
+
+// Javac plugin that injects constants while compiling, used when the injection mode is COMPILER. Initializers of
+// annotated fields are replaced in the syntax tree right after a file is parsed, so javac compiles and inlines the
+// injected values like any other constant.
+//
+// The compiler API does not allow modifying syntax trees, so the javac internals needed for that are accessed by
+// reflection. That way this plugin can be compiled without access to these internals.
+public class ConstantsCompilerPlugin implements Plugin {
+    public static final String NAME = "InjectConstants";
+
+    private CompilerConstants constants;
+    private String annotationName;
+    private Trees trees;
+
+    private Object treeMaker;
+    private Method makerAt;
+    private Method makerLiteral;
+    private Field variableInit;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    // The only argument is the URI of the file with the constants, which can't contain spaces since javac splits
+    // plugin arguments at spaces
+    @Override
+    public void init(JavacTask task, String... args) {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Expected the URI of a constants file as only argument");
+        }
+
+        try {
+            constants = CompilerConstants.read(new File(URI.create(args[0])));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        String annotation = constants.getAnnotation();
+        annotationName = annotation.substring(annotation.lastIndexOf('.') + 1);
+
+        try {
+            ClassLoader loader = task.getClass().getClassLoader();
+            Class<?> contextClass = Class.forName("com.sun.tools.javac.util.Context", false, loader);
+            Class<?> makerClass = Class.forName("com.sun.tools.javac.tree.TreeMaker", false, loader);
+            Class<?> variableClass = Class.forName("com.sun.tools.javac.tree.JCTree$JCVariableDecl", false, loader);
+
+            Object context = task.getClass().getMethod("getContext").invoke(task);
+            treeMaker = makerClass.getMethod("instance", contextClass).invoke(null, context);
+            makerAt = makerClass.getMethod("at", int.class);
+            makerLiteral = makerClass.getMethod("Literal", Object.class);
+            variableInit = variableClass.getField("init");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("This version of javac is not supported for constant injection", e);
+        }
+
+        trees = Trees.instance(task);
+        SourcePositions positions = trees.getSourcePositions();
+        task.addTaskListener(new TaskListener() {
+            @Override
+            public void started(TaskEvent event) {
+            }
+
+            @Override
+            public void finished(TaskEvent event) {
+                if (event.getKind() == TaskEvent.Kind.PARSE) {
+                    CompilationUnitTree unit = event.getCompilationUnit();
+                    new Injector(unit, positions).scan(unit, null);
+                }
+            }
+        });
+    }
+
+    private class Injector extends TreeScanner<Void, Void> {
+        private final CompilationUnitTree unit;
+        private final SourcePositions positions;
+
+        Injector(CompilationUnitTree unit, SourcePositions positions) {
+            this.unit = unit;
+            this.positions = positions;
+        }
+
+        @Override
+        public Void visitVariable(VariableTree tree, Void unused) {
+            Set<Modifier> flags = tree.getModifiers().getFlags();
+            if (flags.contains(Modifier.STATIC) && flags.contains(Modifier.FINAL)) {
+                for (AnnotationTree annotation : tree.getModifiers().getAnnotations()) {
+                    if (isConstantAnnotation(annotation.getAnnotationType())) {
+                        String name = constantName(annotation);
+                        if (name != null) inject(tree, name, constants.getConstant(name));
+                        break;
+                    }
+                }
+            }
+            return super.visitVariable(tree, unused);
+        }
+
+        // Annotations are not resolved yet after parsing, so we can only compare names
+        private boolean isConstantAnnotation(Tree type) {
+            String name = type.toString();
+            return name.equals(annotationName) || name.equals(constants.getAnnotation());
+        }
+
+        private String constantName(AnnotationTree annotation) {
+            for (ExpressionTree argument : annotation.getArguments()) {
+                String field = "value";
+                ExpressionTree value = argument;
+                if (argument instanceof AssignmentTree) {
+                    field = ((AssignmentTree) argument).getVariable().toString();
+                    value = ((AssignmentTree) argument).getExpression();
+                }
+
+                if (field.equals(constants.getAnnotationField())) {
+                    // Like in the SOURCE mode, the name is the source text of the value without quotes
+                    String text = value.toString();
+                    if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\"")) {
+                        return text.substring(1, text.length() - 1);
+                    }
+                    return text;
+                }
+            }
+            return null;
+        }
+
+        private void inject(VariableTree tree, String name, Object value) {
+            if (value == null) return;
+
+            // Like in the SOURCE mode, values are converted to the declared type of the field. Types are not resolved
+            // yet after parsing, so this is the type as written in the source.
+            try {
+                value = ConstantLiterals.convert(value, tree.getType().toString());
+            } catch (IllegalArgumentException e) {
+                trees.printMessage(
+                    Diagnostic.Kind.ERROR,
+                    "Can't inject constant '" + name + "' into field " + tree.getName() + ": " + e.getMessage(),
+                    tree, unit
+                );
+                return;
+            }
+
+            // Javac has no byte and short literals, an int constant is narrowed to the type of the field instead
+            if (value instanceof Byte || value instanceof Short) {
+                value = ((Number) value).intValue();
+            }
+
+            try {
+                long pos = tree.getInitializer() != null
+                           ? positions.getStartPosition(unit, tree.getInitializer())
+                           : positions.getStartPosition(unit, tree);
+                Object maker = makerAt.invoke(treeMaker, (int) pos);
+                variableInit.set(tree, makerLiteral.invoke(maker, value));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to inject constant into field " + tree.getName(), e);
+            }
+        }
+    }
+}
@@ -20,11 +20,22 @@ import groovy.lang.Closure;
 import groovy.lang.GroovyObjectSupport;
 import org.gradle.api.Project;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 public class ConstantsExtension extends GroovyObjectSupport {
@@ -32,9 +43,19 @@ public class ConstantsExtension extends GroovyObjectSupport {
 
     private String annotation;
     private String annotationField = "value";
+    private boolean preserveFormatting = true;
+    private InjectionMode mode = InjectionMode.SOURCE;
 
     private final ArrayList<Function<String, Object>> constants = new ArrayList<>();
+    private final Map<String, Optional<Object>> resolved = new ConcurrentHashMap<>();
+    private final AtomicInteger savedResolutions = new AtomicInteger();
     private final Map<Pattern, Pattern> resourcePatterns = new LinkedHashMap<>();
+    private int resourceMatchLimit = ResourceRewriter.DEFAULT_MATCH_LIMIT;
+    private LazyConstantCache lazyConstantCache;
+
+    private final Set<String> volatileConstants = new TreeSet<>();
+    private String volatileHolder = "net.shadew.modutil.generated.VolatileConstants";
+    private int blobThreshold = 8192;
 
     public ConstantsExtension(Project proj) {
         project = proj;
@@ -66,6 +87,34 @@ public class ConstantsExtension extends GroovyObjectSupport {
         setAnnotationField(field);
     }
 
+    public void setPreserveFormatting(boolean preserveFormatting) {
+        this.preserveFormatting = preserveFormatting;
+    }
+
+    public boolean getPreserveFormatting() {
+        return preserveFormatting;
+    }
+
+    public void preserveFormatting(boolean on) {
+        setPreserveFormatting(on);
+    }
+
+    public void setMode(InjectionMode mode) {
+        this.mode = mode;
+    }
+
+    public InjectionMode getMode() {
+        return mode;
+    }
+
+    public void mode(InjectionMode mode) {
+        setMode(mode);
+    }
+
+    public void mode(String mode) {
+        setMode(InjectionMode.valueOf(mode.toUpperCase(Locale.ROOT)));
+    }
+
     public List<Function<String, Object>> getConstants() {
         return constants;
     }
@@ -79,24 +128,120 @@ public class ConstantsExtension extends GroovyObjectSupport {
         return null;
     }
 
+    // Looks up a constant and evaluates it if it is a Supplier or Closure. Each constant is resolved only once per
+    // build, so that all files and tasks see the same value and expensive constants are not computed repeatedly.
+    public Object resolveConstant(String name) {
+        if (name == null) return null;
+
+        Optional<Object> value = resolved.get(name);
+        if (value == null) {
+            // User-defined constant functions are not expected to be thread safe, so we resolve one constant at a
+            // time. Resolving is reentrant, constant functions may resolve other constants.
+            synchronized (this) {
+                value = resolved.get(name);
+                if (value == null) {
+                    value = Optional.ofNullable(evaluateConstant(name));
+                    resolved.put(name, value);
+                }
+            }
+        }
+        return value.orElse(null);
+    }
+
+    // Resolves a constant for a subproject that does not define it itself
+    private Object resolveInherited(String name) {
+        Optional<Object> value = resolved.get(name);
+        if (value == null) {
+            synchronized (this) {
+                value = resolved.get(name);
+                if (value == null) {
+                    value = Optional.ofNullable(evaluateConstant(name));
+                    resolved.put(name, value);
+                    return value.orElse(null);
+                }
+            }
+        }
+        savedResolutions.incrementAndGet();
+        return value.orElse(null);
+    }
+
+    private Object evaluateConstant(String name) {
+        Object value = getConstant(name);
+        if (value == null) {
+            // Constants of the root project are shared with all subprojects, and resolved once for all of them
+            ConstantsExtension parent = getParent();
+            return parent == null ? null : parent.resolveInherited(name);
+        }
+
+        if (value instanceof Supplier<?>) {
+            value = ((Supplier<?>) value).get();
+        } else if (value instanceof Closure<?>) {
+            Closure<?> cl = (Closure<?>) value;
+            value = cl.call();
+        }
+        return value;
+    }
+
+    // The extension of the root project, looked up when needed since the root project may apply the plugin after its
+    // subprojects did
+    private ConstantsExtension getParent() {
+        if (project == null || project.getRootProject() == project) return null;
+        return project.getRootProject().getExtensions().findByType(ConstantsExtension.class);
+    }
+
+    // How often a subproject used a constant of this extension that was already resolved
+    public int getSavedResolutions() {
+        return savedResolutions.get();
+    }
+
+    // All constants resolved so far, null values are constants that could not be resolved
+    public Map<String, Object> getResolvedConstants() {
+        Map<String, Object> map = new TreeMap<>();
+        resolved.forEach((key, value) -> map.put(key, value.orElse(null)));
+        return Collections.unmodifiableMap(map);
+    }
+
+    private void addConstants(Function<String, Object> fn) {
+        constants.add(fn);
+        resolved.clear();
+    }
+
     public void constant(String name, Object value) {
-        constants.add(key -> name.equals(key) ? value : null);
+        addConstants(key -> name.equals(key) ? value : null);
     }
 
     public void constants(Function<String, Object> fn) {
-        constants.add(fn);
+        addConstants(fn);
     }
 
     public void constants(Map<String, Object> map) {
-        constants.add(map::get);
+        addConstants(map::get);
     }
 
     public void constants(Closure<?> closure) {
-        constants.add(closure::call);
+        addConstants(closure::call);
+    }
+
+    // Adds a constant that is only computed when it is used, or in the background when it is pre-warmed
+    public LazyConstant lazyConstant(String name, Closure<?> provider) {
+        return lazyConstant(name, (Callable<?>) provider);
+    }
+
+    public LazyConstant lazyConstant(String name, Callable<?> provider) {
+        LazyConstant constant = new LazyConstant(name, provider, getLazyConstantCache());
+        constant(name, constant);
+        return constant;
+    }
+
+    private synchronized LazyConstantCache getLazyConstantCache() {
+        if (lazyConstantCache == null) {
+            lazyConstantCache = new LazyConstantCache(() -> new File(project.getBuildDir(), "constants/lazyconstants.properties"));
+        }
+        return lazyConstantCache;
     }
 
     public void constantsFromProperties() {
-        constants.add(project::findProperty);
+        addConstants(project::findProperty);
     }
 
     public Map<Pattern, Pattern> getResourcePatterns() {
@@ -106,4 +251,74 @@ public class ConstantsExtension extends GroovyObjectSupport {
     public void pattern(String filePattern, String constantPattern) {
         resourcePatterns.put(Pattern.compile(filePattern), Pattern.compile(constantPattern));
     }
+
+    public void setResourceMatchLimit(int resourceMatchLimit) {
+        this.resourceMatchLimit = resourceMatchLimit;
+    }
+
+    public int getResourceMatchLimit() {
+        return resourceMatchLimit;
+    }
+
+    public void resourceMatchLimit(int limit) {
+        setResourceMatchLimit(limit);
+    }
+
+    // Volatile constants change often, like a build timestamp. They are not injected into the fields that use them,
+    // but into a generated holder class that these fields refer to, so only that class changes when they change.
+    public Set<String> getVolatileConstants() {
+        return volatileConstants;
+    }
+
+    public boolean isVolatile(String name) {
+        return volatileConstants.contains(name);
+    }
+
+    public void volatileConstants(String... names) {
+        Collections.addAll(volatileConstants, names);
+    }
+
+    public void setVolatileHolder(String volatileHolder) {
+        this.volatileHolder = volatileHolder;
+    }
+
+    public String getVolatileHolder() {
+        return volatileHolder;
+    }
+
+    public void volatileHolder(String className) {
+        setVolatileHolder(className);
+    }
+
+    public VolatileConstantsHolder createVolatileHolder() {
+        return new VolatileConstantsHolder(volatileHolder, volatileConstants);
+    }
+
+    // String constants larger than this amount of UTF-8 bytes are not inlined but stored in a resource that is loaded
+    // when the class is initialized. A negative threshold always inlines them.
+    public void setBlobThreshold(int blobThreshold) {
+        this.blobThreshold = blobThreshold;
+    }
+
+    public int getBlobThreshold() {
+        return blobThreshold;
+    }
+
+    public void blobThreshold(int bytes) {
+        setBlobThreshold(bytes);
+    }
+
+    // Everything except the constants themselves that influences the output of constant injection. When this changes,
+    // all files must be injected again.
+    public String getConfigurationFingerprint() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(annotation).append('#').append(annotationField).append('#').append(preserveFormatting)
+               .append('#').append(resourceMatchLimit)
+               .append('#').append(volatileHolder).append('#').append(volatileConstants)
+               .append('#').append(blobThreshold);
+        resourcePatterns.forEach((filePattern, contentPattern) -> {
+            builder.append('\n').append(filePattern.pattern()).append('\n').append(contentPattern.pattern());
+        });
+        return builder.toString();
+    }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Map;
+
+// Generates the holder class of volatile constants, see ConstantsExtension.getVolatileConstants
+@CacheableTask
+public class GenerateVolatileConstantsTask extends DefaultTask {
+    private File outputDir;
+    private File stateFile;
+
+    public void setOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    // The state file of the injection task, which tells the types of the fields volatile constants are injected into
+    public void setStateFile(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    @Internal
+    public File getStateFile() {
+        return stateFile;
+    }
+
+    @OutputDirectory
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    private ConstantsExtension getExtension() {
+        return getProject().getExtensions().getByType(ConstantsExtension.class);
+    }
+
+    // The source code of the holder class is the only input, it is empty when there is nothing to generate. The state
+    // file is not an input itself, as it changes whenever a source file does.
+    @Input
+    public String getHolderSource() {
+        ConstantsExtension extension = getExtension();
+        if (extension.getMode() != InjectionMode.SOURCE) return "";
+
+        VolatileConstantsHolder holder = extension.createVolatileHolder();
+        InjectionState state = stateFile == null ? null : InjectionState.read(stateFile);
+        Map<String, Map<String, String>> uses = state == null ? Collections.emptyMap() : state.getVolatileUses();
+        return holder.isEmpty() || uses.isEmpty() ? "" : holder.generate(extension::resolveConstant, uses);
+    }
+
+    @TaskAction
+    public void generate() {
+        ConstantsExtension extension = getExtension();
+        String source = getHolderSource();
+
+        File file = new File(outputDir, extension.createVolatileHolder().getSourcePath());
+        deleteOtherFiles(outputDir, file);
+
+        if (source.isEmpty()) {
+            file.delete();
+            return;
+        }
+
+        try {
+            ComparingOutputStream out = new ComparingOutputStream(file);
+            try (PrintStream stream = new PrintStream(out, false, "UTF-8")) {
+                stream.print(source);
+                if (stream.checkError()) throw new IOException("Failed to write " + file);
+                out.commit();
+            }
+            setDidWork(out.isChanged());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Removes holders that were generated with another class name before
+    private static void deleteOtherFiles(File dir, File keep) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                deleteOtherFiles(child, keep);
+            } else if (!child.equals(keep)) {
+                child.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.constants;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// Replaces field initializers in Java source code, leaving all other source text as it is. Fields are located by the
+// range of their declaration in the source and their name. Line numbers are kept: when a replaced initializer spans
+// multiple lines, the line breaks are kept after the new initializer.
+public class InitializerSplicer {
+    private final String source;
+    private final List<Splice> splices = new ArrayList<>();
+    private boolean failed;
+
+    public InitializerSplicer(String source) {
+        this.source = source;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean isEmpty() {
+        return splices.isEmpty();
+    }
+
+    // Whether any initializer could not be located, the spliced source is incomplete in that case
+    public boolean isFailed() {
+        return failed;
+    }
+
+    // Replaces the initializer of the given field by the given Java expression. Returns false when the initializer
+    // could not be located in the given range, in which case nothing is changed.
+    public boolean replace(int declStart, int declEnd, String name, String expression) {
+        boolean found = locate(declStart, declEnd, name, expression);
+        if (!found) failed = true;
+        return found;
+    }
+
+    private boolean locate(int declStart, int declEnd, String name, String expression) {
+        if (declStart < 0 || declEnd > source.length() || declStart >= declEnd) return false;
+
+        int depth = 0;
+        int pos = declStart;
+        while (pos < declEnd) {
+            pos = skipTrivia(pos, declEnd);
+            if (pos >= declEnd) return false;
+
+            char c = source.charAt(pos);
+            if (c == '"' || c == '\'') {
+                pos = skipLiteral(pos, declEnd);
+                if (pos < 0) return false;
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+                pos++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth--;
+                pos++;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int end = identifierEnd(pos, declEnd);
+                if (depth == 0 && source.regionMatches(pos, name, 0, name.length()) && end - pos == name.length()) {
+                    if (pos > 0 && source.charAt(pos - 1) == '.') {
+                        pos = end;
+                        continue;
+                    }
+                    int after = skipDims(end, declEnd);
+                    if (after < 0) return false;
+                    if (after < declEnd) {
+                        char n = source.charAt(after);
+                        if (n == '=' && (after + 1 >= declEnd || source.charAt(after + 1) != '=')) {
+                            return replaceInitializer(after + 1, declEnd, expression);
+                        } else if (n == ';' || n == ',') {
+                            splices.add(new Splice(after, after, " = " + expression));
+                            return true;
+                        }
+                    }
+                }
+                pos = end;
+            } else {
+                pos++;
+            }
+        }
+        return false;
+    }
+
+    private boolean replaceInitializer(int from, int declEnd, String expression) {
+        int start = skipTrivia(from, declEnd);
+        int depth = 0;
+        int pos = start;
+        int lastSignificant = -1;
+        while (pos < declEnd) {
+            int next = skipTrivia(pos, declEnd);
+            if (next > pos) {
+                pos = next;
+                continue;
+            }
+
+            char c = source.charAt(pos);
+            if (c == '"' || c == '\'') {
+                pos = skipLiteral(pos, declEnd);
+                if (pos < 0) return false;
+                lastSignificant = pos;
+                continue;
+            }
+
+            if (depth == 0 && (c == ';' || c == ',')) {
+                break;
+            }
+
+            // Type arguments may contain commas that don't end the initializer, we don't attempt to handle those
+            if (c == '<' && depth == 0) {
+                if (pos + 1 < declEnd && source.charAt(pos + 1) == '<') {
+                    // Shift operator, skip both characters so the second is not taken for a type argument
+                    pos += 2;
+                    lastSignificant = pos;
+                    continue;
+                }
+                if (pos + 1 < declEnd && source.charAt(pos + 1) != '=') {
+                    return false;
+                }
+            }
+
+            if (c == '(' || c == '[' || c == '{') depth++;
+            if (c == ')' || c == ']' || c == '}') depth--;
+            if (depth < 0) return false;
+
+            pos++;
+            lastSignificant = pos;
+        }
+
+        if (pos >= declEnd || lastSignificant <= start) return false;
+
+        int lines = 0;
+        for (int i = start; i < lastSignificant; i++) {
+            if (source.charAt(i) == '\n') lines++;
+        }
+
+        StringBuilder replacement = new StringBuilder(expression);
+        for (int i = 0; i < lines; i++) {
+            replacement.append('\n');
+        }
+        splices.add(new Splice(start, lastSignificant, replacement.toString()));
+        return true;
+    }
+
+    private int skipTrivia(int pos, int end) {
+        while (pos < end) {
+            char c = source.charAt(pos);
+            if (Character.isWhitespace(c)) {
+                pos++;
+            } else if (c == '/' && pos + 1 < end && source.charAt(pos + 1) == '/') {
+                while (pos < end && source.charAt(pos) != '\n') pos++;
+            } else if (c == '/' && pos + 1 < end && source.charAt(pos + 1) == '*') {
+                int close = source.indexOf("*/", pos + 2);
+                pos = close < 0 ? end : close + 2;
+            } else {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    private int skipLiteral(int pos, int end) {
+        char quote = source.charAt(pos);
+        pos++;
+        while (pos < end) {
+            char c = source.charAt(pos);
+            if (c == '\\') {
+                pos += 2;
+            } else if (c == quote) {
+                return pos + 1;
+            } else if (c == '\n') {
+                return -1;
+            } else {
+                pos++;
+            }
+        }
+        return -1;
+    }
+
+    private int identifierEnd(int pos, int end) {
+        pos++;
+        while (pos < end && Character.isJavaIdentifierPart(source.charAt(pos))) pos++;
+        return pos;
+    }
+
+    private int skipDims(int pos, int end) {
+        pos = skipTrivia(pos, end);
+        while (pos < end && source.charAt(pos) == '[') {
+            pos = skipTrivia(pos + 1, end);
+            if (pos >= end || source.charAt(pos) != ']') return -1;
+            pos = skipTrivia(pos + 1, end);
+        }
+        return pos;
+    }
+
+    public String apply() {
+        splices.sort(Comparator.comparingInt(s -> s.start));
+
+        StringBuilder builder = new StringBuilder(source.length() + 64);
+        int pos = 0;
+        for (Splice splice : splices) {
+            if (splice.start < pos) {
+                throw new IllegalStateException("Overlapping initializers");
+            }
+            builder.append(source, pos, splice.start);
+            builder.append(splice.replacement);
+            pos = splice.end;
+        }
+        builder.append(source, pos, source.length());
+        return builder.toString();
+    }
+
+    private static class Splice {
+        final int start;
+        final int end;
+        final String replacement;
+
+        Splice(int start, int end, String replacement) {
+            this.start = start;
+            this.end = end;
+            this.replacement = replacement;
+        }
+    }
+}
@@ -19,37 +19,107 @@ package net.shadew.modutil.constants;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
+import org.gradle.api.file.FileCollection;
 import org.gradle.api.plugins.JavaPluginConvention;
 import org.gradle.api.tasks.SourceSet;
 import org.gradle.api.tasks.compile.JavaCompile;
 import org.gradle.language.jvm.tasks.ProcessResources;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
 
 public class InjectConstantsPlugin implements Plugin<Project> {
     @Override
     public void apply(Project project) {
-        project.getExtensions().create("constants", ConstantsExtension.class, project);
+        ConstantsExtension extension = project.getExtensions().create("constants", ConstantsExtension.class, project);
+
+        if (project == project.getRootProject()) {
+            project.getGradle().buildFinished(result -> {
+                int saved = extension.getSavedResolutions();
+                if (saved > 0) {
+                    project.getLogger().info("Shared constants of the root project saved {} constant resolutions in subprojects", saved);
+                }
+            });
+        }
+
+        // Only source injection uses the parser, which is then warmed up while the rest of the build configures
+        project.afterEvaluate(p -> {
+            if (extension.getMode() == InjectionMode.SOURCE && extension.getAnnotation() != null) {
+                InjectionService.get().warmUp();
+            }
+        });
 
         if (project.getPluginManager().findPlugin("java") != null) {
             JavaPluginConvention java = (JavaPluginConvention) project.getConvention().getPlugins().get("java");
             for (SourceSet set : java.getSourceSets()) {
                 String taskName = set.getTaskName("inject", "constants");
+                String sourcesDir = project.getBuildDir() + "/sources/" + set.getName() + "/";
+                String javaDir = sourcesDir + "java/";
+                String resourcesDir = sourcesDir + "resources/";
+
+                // The injection mode is only known after the buildscript configured it, so sources are resolved lazily
+                Callable<Object> javaSources = () -> extension.getMode() == InjectionMode.SOURCE
+                                                     ? set.getAllJava()
+                                                     : Collections.emptyList();
+                String holderDir = project.getBuildDir() + "/generated/volatileConstants/" + set.getName() + "/";
+                Callable<Object> compileSources = () -> extension.getMode() == InjectionMode.SOURCE
+                                                        ? Arrays.asList(javaDir, holderDir)
+                                                        : set.getJava();
+                String blobDir = project.getBuildDir() + "/generated/constantBlobs/" + set.getName() + "/";
 
                 ConstantInjectionTask injectConstants = project.getTasks().create(taskName, ConstantInjectionTask.class, t -> {
                     t.setGroup("other");
-                    t.setDestinationDir(new File(project.getBuildDir() + "/sources/"));
+                    // Every source set has its own destination, so that the outputs of the tasks don't overlap
+                    t.setDestinationDir(new File(sourcesDir));
+                    t.setBlobDir(new File(blobDir));
 
-                    t.from(set.getAllJava(), spec -> spec.into(project.getBuildDir() + "/sources/" + set.getName() + "/java/"));
-                    t.from(set.getResources(), spec -> spec.into(project.getBuildDir() + "/sources/" + set.getName() + "/resources/"));
+                    t.from(javaSources, spec -> spec.into("java"));
+                    t.from(set.getResources(), spec -> spec.into("resources"));
                 });
 
+                GenerateVolatileConstantsTask generateHolder = project.getTasks().create(
+                    set.getTaskName("generate", "volatileConstants"),
+                    GenerateVolatileConstantsTask.class,
+                    t -> {
+                        t.setGroup("other");
+                        t.setOutputDir(new File(holderDir));
+                        t.setStateFile(injectConstants.getStateFile());
+                        t.dependsOn(injectConstants);
+                    }
+                );
+
                 JavaCompile compileJava = (JavaCompile) project.getTasks().getByName(set.getCompileJavaTaskName());
-                compileJava.setSource(project.getBuildDir() + "/sources/" + set.getName() + "/java/");
-                compileJava.dependsOn(injectConstants);
+                compileJava.setSource(compileSources);
+                compileJava.dependsOn(injectConstants, generateHolder);
+                project.afterEvaluate(p -> {
+                    String encoding = compileJava.getOptions().getEncoding();
+                    if (encoding != null) injectConstants.setEncoding(encoding);
+                });
+
+                ClassConstantInjector classInjector = new ClassConstantInjector(project, set.getAllJava(), compileJava.getName());
+                compileJava.getInputs().property("bytecodeConstants", (Callable<String>) classInjector::getConstantsFingerprint);
+                compileJava.getLocalState().register(classInjector.getKeyIndexFile());
+                compileJava.doFirst(classInjector::start);
+                compileJava.doLast(classInjector);
+                compileJava.getOutputs().upToDateWhen(classInjector::checkUpToDate);
+
+                CompilerConstantInjector compilerInjector = new CompilerConstantInjector(project, set.getAllJava(), compileJava.getName());
+                compileJava.getOptions().getCompilerArgumentProviders().add(compilerInjector);
+                compileJava.getLocalState().register(compilerInjector.getKeyIndexFile());
+                compileJava.doFirst(compilerInjector::prepare);
+
+                // Javac looks for plugins on the annotation processor path, or on the classpath if there is none
+                FileCollection processorPath = compileJava.getOptions().getAnnotationProcessorPath();
+                compileJava.getOptions().setAnnotationProcessorPath(project.files(
+                    compilerInjector.getPluginPath(),
+                    processorPath != null ? processorPath : compileJava.getClasspath()
+                ));
 
                 ProcessResources processResources = project.getTasks().replace(set.getProcessResourcesTaskName(), ProcessResources.class);
-                processResources.from(project.getBuildDir() + "/sources/" + set.getName() + "/resources/");
+                processResources.from(resourcesDir);
+                processResources.from(blobDir);
                 processResources.into(set.getOutput().getResourcesDir());
                 processResources.dependsOn(injectConstants);
 
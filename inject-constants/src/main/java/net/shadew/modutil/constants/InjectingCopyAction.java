@@ -16,7 +16,7 @@
 
 package net.shadew.modutil.constants;
 
-import groovy.lang.Closure;
+import org.gradle.api.InvalidUserDataException;
 import org.gradle.api.Project;
 import org.gradle.api.internal.file.CopyActionProcessingStreamAction;
 import org.gradle.api.internal.file.copy.CopyAction;
@@ -33,97 +33,421 @@ import org.jboss.forge.roaster.model.source.FieldHolderSource;
 import org.jboss.forge.roaster.model.source.JavaSource;
 import org.jboss.forge.roaster.model.source.TypeHolderSource;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.PrintStream;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Optional;
-import java.util.function.Supplier;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 public class InjectingCopyAction implements CopyAction {
-    private final Map<String, String> computedConstants = new HashMap<>();
+    private final Map<String, String> computedConstants = Collections.synchronizedMap(new HashMap<>());
 
     private final PathToFileResolver fileResolver;
     private final Project project;
 
+    private InjectionState previousState;
+    private Map<String, String> previousConstants;
+    private Set<String> invalidatedFiles = Collections.emptySet();
+    private InjectionState state;
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private ByteSearch annotationSearch;
+    private final AtomicInteger javaFiles = new AtomicInteger();
+    private final AtomicInteger unparsedJavaFiles = new AtomicInteger();
+    private final AtomicInteger unchangedOutputs = new AtomicInteger();
+
+    private int threads;
+    private boolean preserveFormatting;
+    private ConstantsExtension extension;
+    private ResourceRewriter resourceRewriter;
+    private VolatileConstantsHolder volatileHolder;
+    private File blobDir;
+    private Charset charset = StandardCharsets.UTF_8;
+    private int blobThreshold;
+
     public InjectingCopyAction(PathToFileResolver fileResolver, Project project) {
         this.fileResolver = fileResolver;
         this.project = project;
     }
 
+    // The configuration the outputs of a run depend on, outputs of a run with another configuration can't be reused
+    public static String getConfiguration(ConstantsExtension extension, Charset charset) {
+        return extension.getConfigurationFingerprint() + "#" + charset.name();
+    }
+
     public Map<String, String> getComputedConstants() {
         return computedConstants;
     }
 
+    // Sets the state of the last run, so that outputs of removed inputs can be deleted. When the constants computed in
+    // that run are given as well, files that did not change since that run are not processed again, unless they are
+    // among the given invalidated files (files that use constants whose value changed).
+    public void setPreviousState(InjectionState previousState, Map<String, String> previousConstants, Set<String> invalidatedFiles) {
+        this.previousState = previousState;
+        this.previousConstants = previousConstants;
+        this.invalidatedFiles = invalidatedFiles;
+    }
+
+    // Sets the directory large constants are written to as resources, or null to always inline them
+    public void setBlobDir(File blobDir) {
+        this.blobDir = blobDir;
+    }
+
+    // Sets the charset of Java sources, which are decoded and encoded again with it when injected
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    // Sets the amount of threads files are processed on, 1 processes all files on the calling thread
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public InjectionState getState() {
+        return state;
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public int getJavaFiles() {
+        return javaFiles.get();
+    }
+
+    public int getUnparsedJavaFiles() {
+        return unparsedJavaFiles.get();
+    }
+
+    // The amount of processed files of which the output already had the right contents and was not written
+    public int getUnchangedOutputs() {
+        return unchangedOutputs.get();
+    }
+
     @Override
     public WorkResult execute(CopyActionProcessingStream stream) {
+        extension = project.getExtensions().getByType(ConstantsExtension.class);
+        state = new InjectionState(getConfiguration(extension, charset));
+        preserveFormatting = extension.getPreserveFormatting();
+        resourceRewriter = new ResourceRewriter(extension.getResourcePatterns(), extension.getResourceMatchLimit());
+        volatileHolder = extension.createVolatileHolder();
+        blobThreshold = extension.getBlobThreshold();
+
+        // Any use of the annotation, whether qualified or imported, contains its simple name. Files that don't contain
+        // it can't have fields to inject so we don't need to parse them.
+        String annotation = extension.getAnnotation();
+        if (annotation != null) {
+            annotationSearch = new ByteSearch(annotation.substring(annotation.lastIndexOf('.') + 1));
+        }
+
         InjectingCopyDetailsInternalAction action = new InjectingCopyDetailsInternalAction();
-        stream.process(action);
+        if (threads > 1) {
+            action.executor = InjectionService.get().getExecutor();
+            action.permits = new Semaphore(threads);
+            try {
+                stream.process(action);
+            } finally {
+                action.awaitCompletion();
+            }
+            action.rethrowFailure();
+        } else {
+            stream.process(action);
+        }
+
+        if (previousState != null) {
+            // Delete outputs of inputs that were removed since the last run
+            previousState.getFiles().forEach((path, previous) -> {
+                InjectionState.FileState current = state.getFile(path);
+                if (current == null) {
+                    File target = fileResolver.resolve(path);
+                    if (target.isFile()) {
+                        target.delete();
+                        action.didWork = true;
+                    }
+                }
+
+                // Delete blobs of constants that are no longer large or no longer exist
+                if (blobDir != null) {
+                    for (String blob : previous.getBlobs()) {
+                        if (current == null || !current.getBlobs().contains(blob)) {
+                            new File(blobDir, blob).delete();
+                        }
+                    }
+                }
+            });
+        }
+
         return WorkResults.didWork(action.didWork);
     }
 
     private class InjectingCopyDetailsInternalAction implements CopyActionProcessingStreamAction {
-        private boolean didWork;
+        private volatile boolean didWork;
+
+        private ExecutorService executor;
+        private Semaphore permits;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
 
         private InjectingCopyDetailsInternalAction() {
         }
 
         @Override
         public void processFile(FileCopyDetailsInternal details) {
-            File target = fileResolver.resolve(details.getRelativePath().getPathString());
+            String path = details.getRelativePath().getPathString();
+            File target = fileResolver.resolve(path);
 
             if (details.isDirectory()) {
-                target.mkdirs();
-                didWork = true;
+                if (target.mkdirs()) didWork = true;
+                return;
+            }
+
+            long size = details.getSize();
+            long lastModified = details.getLastModified();
+
+            // Details with filters are never skipped, their output also depends on the filters and not only on the source
+            if (previousConstants != null && sourceFile(details) != null) {
+                InjectionState.FileState prev = previousState.getFile(path);
+                if (prev != null && prev.matches(size, lastModified) && target.isFile() && !invalidatedFiles.contains(path)) {
+                    for (String key : prev.getKeys()) {
+                        computedConstants.put(key, previousConstants.get(key));
+                    }
+                    state.putFile(path, prev);
+                    skipped.incrementAndGet();
+                    return;
+                }
+            }
+
+            if (!path.endsWith(".java")) {
+                ResourceRewriter.ContentMatcher matcher = resourceRewriter.forPath(path);
+                if (matcher != null) {
+                    File source = sourceFile(details);
+                    if (source != null) {
+                        submit(() -> injectResource(path, target, () -> new FileInputStream(source), matcher, size, lastModified));
+                    } else {
+                        // Filters must be applied before injecting, so the filtered contents are buffered
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        details.copyTo(baos);
+                        submit(() -> injectResource(path, target, () -> new ByteArrayInputStream(baos.toByteArray()), matcher, size, lastModified));
+                    }
+                    return;
+                }
+
+                // Resources without constants are copied as they are, without going through memory
+                File source = sourceFile(details);
+                if (source != null) {
+                    submit(() -> passthrough(path, target, source, size, lastModified));
+                    return;
+                }
+            }
+
+            // Reading happens on the calling thread, the details may not be valid anymore after we return
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            details.copyTo(baos);
+
+            submit(() -> inject(path, target, baos, size, lastModified));
+        }
+
+        // The source file of the given details, or null when the details have filters applied and the file contents
+        // are not what would be copied
+        private File sourceFile(FileCopyDetailsInternal details) {
+            try {
+                return details.getFile();
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+        }
+
+        private void submit(Runnable task) {
+            if (executor == null) {
+                task.run();
                 return;
             }
 
+            if (failure.get() != null) {
+                return;
+            }
+
+            // Limit the amount of files processed at the same time, and the amount of files in memory if reading is
+            // faster than processing
+            permits.acquireUninterruptibly();
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                details.copyTo(baos);
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
 
-                target.getParentFile().mkdirs();
-                try (PrintStream stream = new PrintStream(target)) {
-                    if (details.getRelativePath().getPathString().endsWith(".java")) {
-                        JavaUnit unit = Roaster.parseUnit(baos.toString());
-                        for (JavaType<?> type : unit.getTopLevelTypes()) {
-                            if (type instanceof FieldHolderSource<?>) {
-                                FieldHolderSource<?> src = (FieldHolderSource<?>) type;
-                                process(src);
-                                stream.println(src);
-                            } else {
-                                stream.println(type);
-                            }
+        // Waits until all submitted files are processed, which is when all permits are available again
+        private void awaitCompletion() {
+            permits.acquireUninterruptibly(threads);
+            permits.release(threads);
+        }
+
+        private void rethrowFailure() {
+            Throwable thr = failure.get();
+            if (thr instanceof RuntimeException) throw (RuntimeException) thr;
+            if (thr != null) throw new RuntimeException(thr);
+        }
+
+        private void inject(String path, File target, ByteArrayOutputStream baos, long size, long lastModified) {
+            Set<String> keys = new LinkedHashSet<>();
+            Set<String> volatileUses = new LinkedHashSet<>();
+            Set<String> blobs = new LinkedHashSet<>();
+            try {
+                ComparingOutputStream output = new ComparingOutputStream(target);
+                try (PrintStream stream = new PrintStream(output, false, charset.name())) {
+                    if (path.endsWith(".java")) {
+                        javaFiles.incrementAndGet();
+
+                        byte[] raw = baos.toByteArray();
+                        if (annotationSearch == null || !annotationSearch.containedIn(raw)) {
+                            unparsedJavaFiles.incrementAndGet();
+                            stream.write(raw);
                             stream.flush();
+                        } else {
+                            String source = baos.toString(charset.name());
+                            JavaUnit unit = Roaster.parseUnit(source);
+                            if (!preserveFormatting || !injectSpliced(source, unit, keys, volatileUses, blobs, stream)) {
+                                for (JavaType<?> type : unit.getTopLevelTypes()) {
+                                    if (type instanceof FieldHolderSource<?>) {
+                                        FieldHolderSource<?> src = (FieldHolderSource<?>) type;
+                                        process(src, keys, volatileUses, blobs, null);
+                                        stream.println(src);
+                                    } else {
+                                        stream.println(type);
+                                    }
+                                    stream.flush();
+                                }
+                            }
                         }
                     } else {
-                        byte[] raw = baos.toByteArray();
-                        byte[] repl = modifyResource(details.getRelativePath().getPathString(), raw);
-                        stream.write(repl == null ? raw : repl);
+                        baos.writeTo(stream);
                         stream.flush();
                     }
+
+                    // Print streams don't throw, and a failed file must not be committed
+                    if (stream.checkError()) throw new IOException("Failed to write " + target);
+                    output.commit();
                 }
 
-                didWork = true;
+                state.putFile(path, new InjectionState.FileState(size, lastModified, keys, volatileUses, blobs));
+                written(output.isChanged());
+            } catch (Throwable e) {
+                e.printStackTrace();
+                throw new RuntimeException(e);
+            }
+        }
+
+        // Resources are streamed so that large resources don't need to be in memory entirely
+        private void injectResource(String path, File target, Callable<InputStream> source, ResourceRewriter.ContentMatcher matcher, long size, long lastModified) {
+            Set<String> keys = new LinkedHashSet<>();
+            try {
+                ComparingOutputStream output = new ComparingOutputStream(target);
+                try (Reader in = new InputStreamReader(source.call(), StandardCharsets.UTF_8);
+                     Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                    matcher.rewrite(in, out, resolver(keys));
+                    out.flush();
+                    output.commit();
+                }
+
+                state.putFile(path, new InjectionState.FileState(size, lastModified, keys));
+                written(output.isChanged());
             } catch (Throwable e) {
                 e.printStackTrace();
                 throw new RuntimeException(e);
             }
         }
 
-        private void process(FieldHolderSource<?> src) {
-            modifyJava(src);
+        // Copies keep the modification time of their source, so a copy with the same size and modification time as its
+        // source is assumed to be up to date
+        private void passthrough(String path, File target, File source, long size, long lastModified) {
+            try {
+                if (target.isFile() && target.length() == size && target.lastModified() == lastModified) {
+                    state.putFile(path, new InjectionState.FileState(size, lastModified, Collections.emptySet()));
+                    written(false);
+                    return;
+                }
+
+                target.getParentFile().mkdirs();
+                try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(
+                         target.toPath(),
+                         StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+                     )) {
+                    long count = in.size();
+                    long pos = 0;
+                    while (pos < count) {
+                        long transferred = in.transferTo(pos, count - pos, out);
+                        if (transferred <= 0) break; // Source was truncated while copying
+                        pos += transferred;
+                    }
+                }
+                target.setLastModified(lastModified);
+
+                state.putFile(path, new InjectionState.FileState(size, lastModified, Collections.emptySet()));
+                written(true);
+            } catch (Throwable e) {
+                e.printStackTrace();
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void written(boolean changed) {
+            if (changed) {
+                didWork = true;
+            } else {
+                unchangedOutputs.incrementAndGet();
+            }
+        }
+
+        // Replaces only the initializers in the original source text, so that formatting and line numbers are kept.
+        // Returns false if not all initializers could be located, the file must be printed by Roaster in that case.
+        private boolean injectSpliced(String source, JavaUnit unit, Set<String> keys, Set<String> volatileUses, Set<String> blobs, PrintStream stream) {
+            InitializerSplicer splicer = new InitializerSplicer(source);
+            for (JavaType<?> type : unit.getTopLevelTypes()) {
+                if (type instanceof FieldHolderSource<?>) {
+                    process((FieldHolderSource<?>) type, keys, volatileUses, blobs, splicer);
+                }
+            }
+
+            if (splicer.isFailed()) {
+                return false;
+            }
+
+            stream.print(splicer.apply());
+            stream.flush();
+            return true;
+        }
+
+        private void process(FieldHolderSource<?> src, Set<String> keys, Set<String> volatileUses, Set<String> blobs, InitializerSplicer splicer) {
+            modifyJava(src, keys, volatileUses, blobs, splicer);
 
             if (src instanceof TypeHolderSource<?>) {
                 TypeHolderSource<?> parent = (TypeHolderSource<?>) src;
                 for (int i = 0, l = parent.getNestedTypes().size(); i < l; i++) {
                     JavaSource<?> inner = parent.getNestedTypes().get(i);
                     if (inner instanceof FieldHolderSource<?>) {
-                        process((FieldHolderSource<?>) inner);
+                        process((FieldHolderSource<?>) inner, keys, volatileUses, blobs, splicer);
                         parent.getNestedTypes().set(i, inner);
                     }
                 }
@@ -131,15 +455,12 @@ public class InjectingCopyAction implements CopyAction {
         }
     }
 
-
-    private FieldHolderSource<?> modifyJava(FieldHolderSource<?> src) {
+    private FieldHolderSource<?> modifyJava(FieldHolderSource<?> src, Set<String> keys, Set<String> volatileUses, Set<String> blobs, InitializerSplicer splicer) {
         src.getFields()
            .stream()
            .filter(field -> field.isStatic() && field.isFinal())
            .forEach(
                field -> {
-                   ConstantsExtension extension = project.getExtensions().getByType(ConstantsExtension.class);
-
                    Optional<? extends AnnotationSource<?>> annotation
                        = field.getAnnotations()
                               .stream()
@@ -151,29 +472,42 @@ public class InjectingCopyAction implements CopyAction {
                    annotation.ifPresent(ann -> {
                        String value = annField.equals("value") ? ann.getStringValue() : ann.getStringValue(annField);
                        if (value == null && annField.equals("value")) value = ann.getStringValue("value");
-                       Object fv = extension.getConstant(value);
-                       if (fv instanceof Supplier<?>) {
-                           fv = ((Supplier<?>) fv).get();
-                       } else if (fv instanceof Closure<?>) {
-                           Closure<?> cl = (Closure<?>) fv;
-                           fv = cl.call();
-                       }
+                       String literal;
+                       if (volatileHolder.contains(value)) {
+                           // The injected source does not depend on the value, only the holder class does. The holder
+                           // converts the value to the type of the field.
+                           String type = field.getType().getQualifiedName();
+                           literal = volatileHolder.getReference(value, type);
+                           volatileUses.add(type + " " + value);
+                       } else {
+                           Object fv = extension.resolveConstant(value);
+
+                           computedConstants.put(value, fv == null ? null : fv.toString());
+                           keys.add(value);
+
+                           Object typed;
+                           try {
+                               typed = ConstantLiterals.convert(fv, field.getType().getQualifiedName());
+                           } catch (IllegalArgumentException e) {
+                               throw new InvalidUserDataException(
+                                   "Can't inject constant '" + value + "' into field " + src.getQualifiedName() + "."
+                                       + field.getName() + ": " + e.getMessage(), e
+                               );
+                           }
 
-                       computedConstants.put(value, fv == null ? null : fv.toString());
-
-                       if (fv instanceof String)
-                           field.setStringInitializer((String) fv);
-                       else {
-                           if (fv instanceof Integer) {
-                               field.setLiteralInitializer(fv + "");
-                           } else if (fv instanceof Long) {
-                               field.setLiteralInitializer(fv + "L");
-                           } else if (fv instanceof Float) {
-                               field.setLiteralInitializer(fv + "F");
-                           } else if (fv instanceof Double) {
-                               field.setLiteralInitializer(fv + "D");
-                           } else if (fv != null && field.getType().getQualifiedName().equals("java.lang.String")) {
-                               field.setStringInitializer(fv.toString());
+                           literal = typed == null ? null : ConstantLiterals.literal(typed);
+                           if (typed instanceof String) {
+                               byte[] bytes = ((String) typed).getBytes(StandardCharsets.UTF_8);
+                               if (blobDir != null && blobThreshold >= 0 && bytes.length > blobThreshold) {
+                                   literal = writeBlob(src, field.getName(), bytes, blobs);
+                               }
+                           }
+                       }
+                       if (literal != null) {
+                           if (splicer != null) {
+                               splicer.replace(field.getStartPosition(), field.getEndPosition(), field.getName(), literal);
+                           } else {
+                               field.setLiteralInitializer(literal);
                            }
                        }
                    });
@@ -182,57 +516,35 @@ public class InjectingCopyAction implements CopyAction {
         return src;
     }
 
-    private byte[] modifyResource(String path, byte[] content) {
-        ConstantsExtension extension = project.getExtensions().getByType(ConstantsExtension.class);
-
-        byte[][] contentArr = {content};
-        Map<Pattern, Pattern> patterns = extension.getResourcePatterns();
-        patterns.forEach((filePattern, contentPattern) -> {
-            if (filePattern.matcher(path).matches()) {
-                String contentStr = new String(content, StandardCharsets.UTF_8);
-                StringBuffer replaced = new StringBuffer();
-                Matcher matcher = contentPattern.matcher(contentStr);
-
-                while (matcher.find()) {
-                    String constName;
-                    if (matcher.groupCount() == 0) {
-                        constName = matcher.group();
-                    } else {
-                        constName = null;
-                        int i = 1;
-
-                        while (constName == null && i <= matcher.groupCount()) {
-                            constName = matcher.group(i);
-                            i++;
-                        }
-
-                        if (constName == null) {
-                            constName = matcher.group();
-                        }
-                    }
-
-                    Object repl = extension.getConstant(constName);
-                    if (repl instanceof Supplier<?>) {
-                        repl = ((Supplier<?>) repl).get();
-                    } else if (repl instanceof Closure<?>) {
-                        Closure<?> cl = (Closure<?>) repl;
-                        repl = cl.call();
-                    }
-
-
-                    computedConstants.put(constName, repl == null ? null : repl.toString());
-                    if (repl != null) {
-                        matcher.appendReplacement(replaced, repl.toString());
-                    } else {
-                        matcher.appendReplacement(replaced, matcher.group());
-                    }
-                }
+    // Writes a large string constant to a resource next to the class, and returns the expression that loads it. This
+    // keeps large values out of the constant pool, which can't hold strings of more than 65535 bytes.
+    private String writeBlob(FieldHolderSource<?> src, String field, byte[] value, Set<String> blobs) {
+        String pkg = src.getPackage();
+        String qualifiedName = src.getQualifiedName();
+        boolean defaultPackage = pkg == null || pkg.isEmpty();
+
+        String binaryName = (defaultPackage ? qualifiedName : qualifiedName.substring(pkg.length() + 1)).replace('.', '$');
+        String name = binaryName + "." + field + ".blob";
+        String path = defaultPackage ? name : pkg.replace('.', '/') + "/" + name;
+
+        try (ComparingOutputStream out = new ComparingOutputStream(new File(blobDir, path))) {
+            out.write(value);
+            out.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        blobs.add(path);
 
-                matcher.appendTail(replaced);
-                contentArr[0] = replaced.toString().getBytes(StandardCharsets.UTF_8);
-            }
-        });
+        return "new java.util.Scanner(" + qualifiedName + ".class.getResourceAsStream(" + ConstantLiterals.string(name) + "), "
+                   + "\"UTF-8\").useDelimiter(\"\\\\A\").next()";
+    }
 
-        return contentArr[0];
+    private Function<String, Object> resolver(Set<String> keys) {
+        return constName -> {
+            Object repl = extension.resolveConstant(constName);
+            computedConstants.put(constName, repl == null ? null : repl.toString());
+            keys.add(constName);
+            return repl;
+        };
     }
 }
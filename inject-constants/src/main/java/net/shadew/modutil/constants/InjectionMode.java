@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.constants;
+
+public enum InjectionMode {
+    // Sources are copied to build/sources and injected before they are compiled
+    SOURCE,
+
+    // Sources are compiled as they are, and constants are injected into the compiled class files afterwards
+    BYTECODE,
+
+    // Sources are compiled as they are, and constants are injected by a javac plugin while compiling
+    COMPILER
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.jboss.forge.roaster.Roaster;
+import org.jboss.forge.roaster.model.JavaUnit;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Shared by all constant injection in a Gradle daemon. Gradle keeps the classloader of this plugin between builds as
+// long as the buildscript classpath does not change, so the worker threads, and the parser classes that are loaded and
+// compiled by the JIT, are reused by all projects and source sets and by later builds.
+public final class InjectionService {
+    private static final InjectionService INSTANCE = new InjectionService();
+
+    // Idle workers are stopped after a while, a build that comes soon after gets the same threads
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final int WARM_UP_ITERATIONS = 200;
+
+    private final ExecutorService executor;
+    private final AtomicBoolean warmedUp = new AtomicBoolean();
+
+    private InjectionService() {
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "Constant injection worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static InjectionService get() {
+        return INSTANCE;
+    }
+
+    // Callers limit how many of their tasks run at the same time, the executor does not
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    // Loads and warms up the parser in the background, once per daemon. This is started when the plugin is applied so
+    // that it overlaps with the configuration of the build.
+    public void warmUp() {
+        if (!warmedUp.compareAndSet(false, true)) return;
+
+        executor.execute(() -> {
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            try {
+                for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                    String source = warmUpSource(i);
+                    JavaUnit unit = Roaster.parseUnit(source);
+                    int declStart = source.indexOf("@Constant");
+                    InitializerSplicer splicer = new InitializerSplicer(source);
+                    splicer.replace(declStart, source.indexOf(';', declStart) + 1, "FIELD", ConstantLiterals.string("value " + i));
+                    splicer.apply();
+                    unit.getTopLevelTypes().toString();
+                }
+            } catch (RuntimeException | LinkageError e) {
+                // Warming up is an optimization only, the actual injection reports any problems
+            } finally {
+                Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
+            }
+        });
+    }
+
+    private static String warmUpSource(int index) {
+        return "package warmup;\n\n"
+                   + "import java.util.List;\n\n"
+                   + "public class WarmUp" + index + " {\n"
+                   + "    @Constant(\"key" + index + "\")\n"
+                   + "    public static final String FIELD = \"placeholder\";\n\n"
+                   + "    private List<String> values;\n\n"
+                   + "    public int compute(int value) {\n"
+                   + "        for (String str : values) value += str.length() * " + index + ";\n"
+                   + "        return value;\n"
+                   + "    }\n"
+                   + "}\n";
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.constants;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Remembers what the last run of a ConstantInjectionTask processed, so that a next run only needs to process the
+// files that changed since
+public class InjectionState {
+    private static final String HEADER = "injectionstate v3";
+
+    private final String configuration;
+    // Sorted so that the written state does not depend on the order files were processed in
+    private final Map<String, FileState> files = new TreeMap<>();
+
+    public InjectionState(String configuration) {
+        this.configuration = configuration;
+    }
+
+    public String getConfiguration() {
+        return configuration;
+    }
+
+    public Map<String, FileState> getFiles() {
+        return files;
+    }
+
+    public synchronized FileState getFile(String path) {
+        return files.get(path);
+    }
+
+    public synchronized void putFile(String path, FileState state) {
+        files.put(path, state);
+    }
+
+    // The files that used any of the given constants, the keys of each file form an index from constant to files
+    public synchronized Set<String> getFilesUsing(Set<String> keys) {
+        Set<String> paths = new HashSet<>();
+        if (keys.isEmpty()) return paths;
+
+        files.forEach((path, state) -> {
+            for (String key : state.getKeys()) {
+                if (keys.contains(key)) {
+                    paths.add(path);
+                    break;
+                }
+            }
+        });
+        return paths;
+    }
+
+    // The keys of all files, sorted
+    public synchronized Set<String> getKeys() {
+        Set<String> keys = new TreeSet<>();
+        files.forEach((path, state) -> keys.addAll(state.getKeys()));
+        return keys;
+    }
+
+    // The types of the fields that volatile constants are injected into, by key, with for each type the first file that
+    // uses it
+    public synchronized Map<String, Map<String, String>> getVolatileUses() {
+        Map<String, Map<String, String>> uses = new TreeMap<>();
+        files.forEach((path, state) -> {
+            for (String use : state.getVolatileUses()) {
+                int space = use.indexOf(' ');
+                uses.computeIfAbsent(use.substring(space + 1), k -> new TreeMap<>())
+                    .putIfAbsent(use.substring(0, space), path);
+            }
+        });
+        return uses;
+    }
+
+    public static InjectionState read(File file) {
+        if (!file.exists()) return null;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine())) return null;
+
+            String config = reader.readLine();
+            if (config == null) return null;
+
+            InjectionState state = new InjectionState(unescape(config));
+
+            String ln;
+            while ((ln = reader.readLine()) != null) {
+                String[] parts = ln.split("\t", -1);
+                if (parts.length < 4) return null;
+
+                // Keys and volatile uses are preceded by their amount, the remaining parts are blobs
+                int pos = 3;
+                int keyCount = Integer.parseInt(parts[pos++]);
+                Set<String> keys = new LinkedHashSet<>();
+                for (int end = pos + keyCount; pos < end; pos++) {
+                    keys.add(unescape(parts[pos]));
+                }
+                int useCount = Integer.parseInt(parts[pos++]);
+                Set<String> volatileUses = new LinkedHashSet<>();
+                for (int end = pos + useCount; pos < end; pos++) {
+                    volatileUses.add(unescape(parts[pos]));
+                }
+                Set<String> blobs = new LinkedHashSet<>();
+                for (; pos < parts.length; pos++) {
+                    blobs.add(unescape(parts[pos]));
+                }
+
+                FileState fs = new FileState(Long.parseLong(parts[1]), Long.parseLong(parts[2]), keys, volatileUses, blobs);
+                state.putFile(unescape(parts[0]), fs);
+            }
+            return state;
+        } catch (IOException | RuntimeException e) {
+            // A corrupt state file only costs us a full run
+            return null;
+        }
+    }
+
+    public void write(File file) {
+        file.getParentFile().mkdirs();
+        try (PrintStream stream = new PrintStream(file, "UTF-8")) {
+            stream.println(HEADER);
+            stream.println(escape(configuration));
+            for (Map.Entry<String, FileState> e : files.entrySet()) {
+                FileState fs = e.getValue();
+                stream.print(escape(e.getKey()));
+                stream.print("\t");
+                stream.print(fs.getSize());
+                stream.print("\t");
+                stream.print(fs.getLastModified());
+                stream.print("\t");
+                stream.print(fs.getKeys().size());
+                for (String key : fs.getKeys()) {
+                    stream.print("\t");
+                    stream.print(escape(key));
+                }
+                stream.print("\t");
+                stream.print(fs.getVolatileUses().size());
+                for (String use : fs.getVolatileUses()) {
+                    stream.print("\t");
+                    stream.print(escape(use));
+                }
+                for (String blob : fs.getBlobs()) {
+                    stream.print("\t");
+                    stream.print(escape(blob));
+                }
+                stream.println();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String escape(String str) {
+        return str.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String str) {
+        StringBuilder builder = new StringBuilder(str.length());
+        for (int i = 0, l = str.length(); i < l; i++) {
+            char c = str.charAt(i);
+            if (c == '\\' && i + 1 < l) {
+                char n = str.charAt(++i);
+                switch (n) {
+                    case 't': builder.append('\t'); break;
+                    case 'n': builder.append('\n'); break;
+                    case 'r': builder.append('\r'); break;
+                    default: builder.append(n); break;
+                }
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    public static class FileState {
+        private final long size;
+        private final long lastModified;
+        private final Set<String> keys;
+        private final Set<String> volatileUses;
+        private final Set<String> blobs;
+
+        public FileState(long size, long lastModified, Set<String> keys) {
+            this(size, lastModified, keys, Collections.emptySet(), Collections.emptySet());
+        }
+
+        public FileState(long size, long lastModified, Set<String> keys, Set<String> volatileUses, Set<String> blobs) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.keys = keys;
+            this.volatileUses = volatileUses;
+            this.blobs = blobs;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public Set<String> getKeys() {
+            return keys;
+        }
+
+        // The volatile constants this file refers to, as the type of the field followed by a space and the key
+        public Set<String> getVolatileUses() {
+            return volatileUses;
+        }
+
+        // The paths of the blob resources written for this file, relative to the blob directory
+        public Set<String> getBlobs() {
+            return blobs;
+        }
+
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+}
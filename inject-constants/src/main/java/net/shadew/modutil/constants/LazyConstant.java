@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+// A constant that is computed when it is first used, or in the background as soon as it is pre-warmed. When computing
+// it fails or takes longer than its timeout, its fallback value is used, or otherwise the value it had the last time it
+// was computed successfully.
+public class LazyConstant implements Supplier<Object> {
+    private static final Logger LOGGER = Logging.getLogger(LazyConstant.class);
+
+    private final String name;
+    private final Callable<?> provider;
+    private final LazyConstantCache cache;
+
+    private long timeout = -1;
+    private Object fallback;
+    private CompletableFuture<Object> future;
+
+    public LazyConstant(String name, Callable<?> provider, LazyConstantCache cache) {
+        this.name = name;
+        this.provider = provider;
+        this.cache = cache;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    // Sets how many milliseconds to wait for the value when it is needed
+    public LazyConstant timeout(long millis) {
+        setTimeout(millis);
+        return this;
+    }
+
+    public void setFallback(Object fallback) {
+        this.fallback = fallback;
+    }
+
+    public Object getFallback() {
+        return fallback;
+    }
+
+    public LazyConstant fallback(Object value) {
+        setFallback(value);
+        return this;
+    }
+
+    // Starts computing the value in the background, so that it is ready by the time it is needed. Note that the provider
+    // then runs in parallel with the rest of the build.
+    public LazyConstant prewarm() {
+        start();
+        return this;
+    }
+
+    private synchronized CompletableFuture<Object> start() {
+        if (future == null) {
+            future = CompletableFuture.supplyAsync(this::compute, InjectionService.get().getExecutor());
+        }
+        return future;
+    }
+
+    private synchronized boolean isStarted() {
+        return future != null;
+    }
+
+    private Object compute() {
+        try {
+            Object value = provider.call();
+            if (value != null) {
+                cache.put(name, value.toString());
+            }
+            return value;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    @Override
+    public Object get() {
+        // Without timeout and when not pre-warmed, there is no need to compute the value on another thread
+        if (timeout < 0 && !isStarted()) {
+            try {
+                return compute();
+            } catch (CompletionException e) {
+                return fallback(e.getCause());
+            }
+        }
+
+        try {
+            return timeout < 0 ? start().get() : start().get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return fallback(e.getCause());
+        } catch (TimeoutException e) {
+            return fallback(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while computing constant '" + name + "'", e);
+        }
+    }
+
+    private Object fallback(Throwable problem) {
+        Object value = fallback != null ? fallback : cache.get(name);
+        if (value == null) {
+            throw new GradleException("Failed to compute constant '" + name + "' and it has no fallback value", problem);
+        }
+
+        String reason = problem instanceof TimeoutException ? "took longer than " + timeout + "ms" : "failed: " + problem;
+        LOGGER.warn("Computing constant '{}' {}, using fallback value '{}'", name, reason, value);
+        return value;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+// The last values of lazy constants, used as fallback when a lazy constant fails or takes too long
+public class LazyConstantCache {
+    // The file is resolved when first needed, since the build directory may not be configured yet when lazy constants
+    // are added
+    private final Supplier<File> fileSupplier;
+    private File file;
+    private Properties values;
+
+    public LazyConstantCache(Supplier<File> fileSupplier) {
+        this.fileSupplier = fileSupplier;
+    }
+
+    private Properties load() {
+        if (values == null) {
+            file = fileSupplier.get();
+            values = new Properties();
+            if (file.isFile()) {
+                try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                    values.load(in);
+                } catch (IOException | IllegalArgumentException e) {
+                    // Without a cache there are just no fallback values
+                    values.clear();
+                }
+            }
+        }
+        return values;
+    }
+
+    public synchronized String get(String name) {
+        return load().getProperty(name);
+    }
+
+    public synchronized void put(String name, String value) {
+        Properties values = load();
+        if (value.equals(values.getProperty(name))) return;
+
+        values.setProperty(name, value);
+        file.getParentFile().mkdirs();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            values.store(out, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.constants;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// Injects constants into resources, using the resource patterns of the constants extension. All file patterns are
+// compiled into one pattern that finds all applicable content patterns in one match, and the applicable content
+// patterns are compiled into one pattern so that a resource is scanned only once.
+public class ResourceRewriter {
+    // Backreferences are numbered, they break when patterns are combined
+    private static final Pattern BACKREFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+    private static final int CHUNK_SIZE = 65536;
+    public static final int DEFAULT_MATCH_LIMIT = 16384;
+
+    private final int matchLimit;
+
+    private final Pattern[] filePatterns;
+    private final Pattern[] contentPatterns;
+    private final Pattern combinedFilePattern;
+    private final Map<BitSet, ContentMatcher> contentMatchers = new ConcurrentHashMap<>();
+
+    public ResourceRewriter(Map<Pattern, Pattern> patterns) {
+        this(patterns, DEFAULT_MATCH_LIMIT);
+    }
+
+    // The match limit is the maximum length of a match when streaming resources, including any characters that
+    // lookaheads or lookbehinds need to see
+    public ResourceRewriter(Map<Pattern, Pattern> patterns, int matchLimit) {
+        if (matchLimit <= 0) throw new IllegalArgumentException("Match limit must be positive");
+        this.matchLimit = matchLimit;
+        filePatterns = patterns.keySet().toArray(new Pattern[0]);
+        contentPatterns = patterns.values().toArray(new Pattern[0]);
+        combinedFilePattern = combineFilePatterns(filePatterns);
+    }
+
+    private static boolean combinable(Pattern pattern) {
+        return pattern.flags() == 0 && !BACKREFERENCE.matcher(pattern.pattern()).find();
+    }
+
+    // Each file pattern becomes an optional lookahead with a capturing group, which captures if and only if the file
+    // pattern matches the entire path
+    private static Pattern combineFilePatterns(Pattern[] patterns) {
+        if (patterns.length == 0) return null;
+
+        StringBuilder builder = new StringBuilder();
+        for (Pattern pattern : patterns) {
+            if (!combinable(pattern)) return null;
+            builder.append("(?:(?=((?:").append(pattern.pattern()).append(")\\z))|)");
+        }
+
+        try {
+            Pattern combined = Pattern.compile(builder.toString());
+            return combined.matcher("").groupCount() == countGroups(patterns) + patterns.length ? combined : null;
+        } catch (PatternSyntaxException exc) {
+            return null;
+        }
+    }
+
+    private static int countGroups(Pattern[] patterns) {
+        int count = 0;
+        for (Pattern pattern : patterns) {
+            count += pattern.matcher("").groupCount();
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return filePatterns.length == 0;
+    }
+
+    // Returns the matcher to inject a resource at the given path with, or null if no pattern applies to it
+    public ContentMatcher forPath(String path) {
+        if (filePatterns.length == 0) return null;
+
+        BitSet applicable = new BitSet(filePatterns.length);
+        if (combinedFilePattern != null) {
+            Matcher matcher = combinedFilePattern.matcher(path);
+            if (matcher.lookingAt()) {
+                int group = 1;
+                for (int i = 0; i < filePatterns.length; i++) {
+                    if (matcher.group(group) != null) applicable.set(i);
+                    group += 1 + filePatterns[i].matcher("").groupCount();
+                }
+            }
+        } else {
+            for (int i = 0; i < filePatterns.length; i++) {
+                if (filePatterns[i].matcher(path).matches()) applicable.set(i);
+            }
+        }
+
+        if (applicable.isEmpty()) return null;
+        return contentMatchers.computeIfAbsent(applicable, this::compileContentMatcher);
+    }
+
+    private ContentMatcher compileContentMatcher(BitSet applicable) {
+        List<Pattern> patterns = new ArrayList<>();
+        for (int i = applicable.nextSetBit(0); i >= 0; i = applicable.nextSetBit(i + 1)) {
+            patterns.add(contentPatterns[i]);
+        }
+        return new ContentMatcher(patterns, matchLimit);
+    }
+
+    public static class ContentMatcher {
+        private final int matchLimit;
+        private final List<Pattern> patterns;
+        private final Pattern combined;
+        private final int[] groupOffsets;
+        private final int[] groupCounts;
+
+        ContentMatcher(List<Pattern> patterns, int matchLimit) {
+            this.matchLimit = matchLimit;
+            this.patterns = patterns;
+
+            int n = patterns.size();
+            groupOffsets = new int[n];
+            groupCounts = new int[n];
+
+            Pattern combined = null;
+            if (n == 1) {
+                combined = patterns.get(0);
+                groupCounts[0] = combined.matcher("").groupCount();
+            } else if (patterns.stream().allMatch(ResourceRewriter::combinable)) {
+                // Every content pattern becomes an alternative wrapped in a capturing group, this group tells which
+                // alternative matched
+                StringBuilder builder = new StringBuilder();
+                int group = 1;
+                for (int i = 0; i < n; i++) {
+                    Pattern pattern = patterns.get(i);
+                    if (i > 0) builder.append('|');
+                    builder.append('(').append(pattern.pattern()).append(')');
+
+                    groupOffsets[i] = group;
+                    groupCounts[i] = pattern.matcher("").groupCount();
+                    group += 1 + groupCounts[i];
+                }
+
+                try {
+                    combined = Pattern.compile(builder.toString());
+                    if (combined.matcher("").groupCount() != group - 1) combined = null;
+                } catch (PatternSyntaxException exc) {
+                    combined = null;
+                }
+            }
+            this.combined = combined;
+        }
+
+        public Pattern getPattern() {
+            return combined;
+        }
+
+        // Injects constants into the given content, returns null if nothing was replaced
+        public String rewrite(CharSequence content, Function<String, Object> resolver) {
+            if (combined == null) {
+                // Patterns that can't be combined are applied one after another
+                CharSequence current = content;
+                boolean replaced = false;
+                for (Pattern pattern : patterns) {
+                    String result = rewrite(pattern.matcher(current), current, resolver, pattern.matcher("").groupCount());
+                    if (result != null) {
+                        current = result;
+                        replaced = true;
+                    }
+                }
+                return replaced ? current.toString() : null;
+            }
+
+            return rewrite(combined.matcher(content), content, resolver, -1);
+        }
+
+        private String rewrite(Matcher matcher, CharSequence content, Function<String, Object> resolver, int groups) {
+            StringBuilder builder = null;
+            int last = 0;
+            while (matcher.find()) {
+                if (builder == null) builder = new StringBuilder(content.length() + 64);
+
+                builder.append(content, last, matcher.start());
+                appendMatch(builder, matcher, resolver, groups);
+                last = matcher.end();
+            }
+
+            if (builder == null) return null;
+            builder.append(content, last, content.length());
+            return builder.toString();
+        }
+
+        // Injects constants while streaming from the given reader to the given writer, using a fixed amount of
+        // memory. Matches may span the boundaries of the chunks we read, as long as they are no longer than the match
+        // limit. Returns whether anything was replaced.
+        public boolean rewrite(Reader in, Writer out, Function<String, Object> resolver) throws IOException {
+            if (combined == null) {
+                // Patterns are applied one after another, which requires the full content
+                StringBuilder content = new StringBuilder();
+                char[] buf = new char[CHUNK_SIZE];
+                int r;
+                while ((r = in.read(buf)) >= 0) {
+                    content.append(buf, 0, r);
+                }
+
+                String result = rewrite(content, resolver);
+                out.append(result == null ? content : result);
+                return result != null;
+            }
+
+            // The buffer holds, in order: up to matchLimit characters of context for lookbehinds, the characters that
+            // are not yet processed, and at least matchLimit characters of lookahead so matches are not cut off
+            char[] buf = new char[CHUNK_SIZE + 2 * matchLimit];
+            int len = 0;
+            int pos = 0;
+            // Like Matcher.find, the search continues one character further after an empty match, so that the same
+            // empty match is not found again after the buffer is refilled
+            int from = 0;
+            boolean eof = false;
+            boolean replaced = false;
+            StringBuilder replacement = new StringBuilder();
+
+            while (true) {
+                while (!eof && len < buf.length) {
+                    int r = in.read(buf, len, buf.length - len);
+                    if (r < 0) eof = true;
+                    else len += r;
+                }
+
+                Matcher matcher = combined.matcher(CharBuffer.wrap(buf, 0, len));
+                matcher.useTransparentBounds(true);
+                matcher.useAnchoringBounds(false);
+                matcher.region(Math.min(from, len), len);
+
+                // A match is only certain when at least matchLimit characters follow its start, or when the input
+                // ended. Otherwise we wait for more input.
+                int limit = eof ? len : len - matchLimit;
+                int undecided = len;
+                while (from <= len && matcher.find()) {
+                    if (!eof && matcher.start() > limit) {
+                        undecided = matcher.start();
+                        break;
+                    }
+
+                    out.write(buf, pos, matcher.start() - pos);
+                    replacement.setLength(0);
+                    appendMatch(replacement, matcher, resolver, -1);
+                    out.append(replacement);
+
+                    pos = matcher.end();
+                    from = matcher.end() == matcher.start() ? pos + 1 : pos;
+                    replaced = true;
+                }
+
+                int emit = Math.max(pos, Math.min(limit, undecided));
+                out.write(buf, pos, emit - pos);
+                pos = emit;
+                from = Math.max(from, pos);
+
+                if (eof) break;
+
+                int drop = Math.max(0, pos - matchLimit);
+                System.arraycopy(buf, drop, buf, 0, len - drop);
+                len -= drop;
+                pos -= drop;
+                from -= drop;
+            }
+
+            return replaced;
+        }
+
+        private void appendMatch(StringBuilder builder, Matcher matcher, Function<String, Object> resolver, int groups) {
+            if (groups >= 0) {
+                appendReplacement(builder, matcher, 0, groups, resolver);
+            } else if (patterns.size() == 1) {
+                appendReplacement(builder, matcher, 0, groupCounts[0], resolver);
+            } else {
+                int alt = 0;
+                while (matcher.group(groupOffsets[alt]) == null) alt++;
+                appendReplacement(builder, matcher, groupOffsets[alt], groupCounts[alt], resolver);
+            }
+        }
+
+        // Matches are replaced by the constant named by the first group that matched, or by the whole match if the
+        // pattern has no groups. Unknown constants are left as they are.
+        static void appendReplacement(StringBuilder builder, Matcher matcher, int offset, int groups, Function<String, Object> resolver) {
+            String constName = null;
+            for (int i = 1; constName == null && i <= groups; i++) {
+                constName = matcher.group(offset + i);
+            }
+            if (constName == null) {
+                constName = matcher.group(offset);
+            }
+
+            Object repl = resolver.apply(constName);
+            if (repl != null) {
+                builder.append(repl);
+            } else {
+                builder.append(matcher.group(offset));
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.gradle.api.InvalidUserDataException;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+// The generated class that holds volatile constants. Its fields are blank finals assigned in a static initializer, so
+// they are no compile-time constants and javac does not inline them: when a volatile constant changes, only this class
+// needs to be compiled again. Every key gets a field for each type of field it is injected into, so that its value is
+// converted like any other constant.
+public class VolatileConstantsHolder {
+    private final String className;
+    private final Map<String, String> fields = new TreeMap<>();
+
+    public VolatileConstantsHolder(String className, Set<String> keys) {
+        this.className = className;
+
+        // Keys are named in sorted order, so that every key gets the same field name every time
+        Set<String> used = new HashSet<>();
+        for (String key : new TreeSet<>(keys)) {
+            String base = fieldName(key);
+            String name = base;
+            for (int i = 2; !used.add(name); i++) {
+                name = base + "_" + i;
+            }
+            fields.put(key, name);
+        }
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    public boolean contains(String key) {
+        return fields.containsKey(key);
+    }
+
+    // The expression that refers to the field of the given key and field type. Its name only depends on the key and
+    // the type, so that sources injected before stay valid when the key is used with other types.
+    public String getReference(String key, String type) {
+        return className + "." + fieldName(key, type);
+    }
+
+    private String fieldName(String key, String type) {
+        StringBuilder builder = new StringBuilder(fields.get(key)).append('$');
+        String name = type.startsWith("java.lang.") && type.indexOf('.', 10) < 0 ? type.substring(10) : type;
+        for (int i = 0, l = name.length(); i < l; i++) {
+            char c = name.charAt(i);
+            builder.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        return builder.toString();
+    }
+
+    // The path of the source file of the holder, relative to a source directory
+    public String getSourcePath() {
+        return className.replace('.', '/') + ".java";
+    }
+
+    // Generates the holder with a field for every key and type in the given uses, which map each key to the types it
+    // is injected into and the first file that does so
+    public String generate(Function<String, Object> resolver, Map<String, Map<String, String>> uses) {
+        int dot = className.lastIndexOf('.');
+        String pkg = dot < 0 ? null : className.substring(0, dot);
+        String simpleName = className.substring(dot + 1);
+
+        StringBuilder decls = new StringBuilder();
+        StringBuilder inits = new StringBuilder();
+        uses.forEach((key, types) -> {
+            if (!contains(key)) return;
+
+            Object value = resolver.apply(key);
+            types.forEach((type, path) -> {
+                String literal;
+                try {
+                    if (value == null && type.indexOf('.') < 0) {
+                        throw new IllegalArgumentException("The constant has no value");
+                    }
+                    literal = value == null ? "null" : ConstantLiterals.literal(value, type);
+                } catch (IllegalArgumentException e) {
+                    throw new InvalidUserDataException(
+                        "Can't inject constant '" + key + "' into field of type " + type + " in " + path + ": " + e.getMessage(), e
+                    );
+                }
+                String field = fieldName(key, type);
+
+                decls.append("    // ").append(key.replace("\\", "\\\\").replace('\n', ' ').replace('\r', ' ')).append('\n');
+                decls.append("    public static final ").append(type).append(' ').append(field).append(";\n");
+                inits.append("        ").append(field).append(" = ").append(literal).append(";\n");
+            });
+        });
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("// Generated by ModUtil, do not edit\n");
+        if (pkg != null) {
+            builder.append("package ").append(pkg).append(";\n\n");
+        }
+        builder.append("public final class ").append(simpleName).append(" {\n");
+        builder.append(decls).append('\n');
+        builder.append("    static {\n").append(inits).append("    }\n\n");
+        builder.append("    private ").append(simpleName).append("() {\n    }\n");
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    private static String fieldName(String key) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0, l = key.length(); i < l; i++) {
+            char c = key.charAt(i);
+            if (Character.isUpperCase(c) && i > 0 && Character.isLowerCase(key.charAt(i - 1))) {
+                builder.append('_');
+            }
+            // A dollar sign separates the key from the type in field names, so keys can't contain it
+            builder.append(Character.isJavaIdentifierPart(c) && c != '$' ? Character.toUpperCase(c) : '_');
+        }
+        if (builder.length() == 0 || !Character.isJavaIdentifierStart(builder.charAt(0)) || builder.toString().equals("_")) {
+            builder.insert(0, "KEY_");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class ComparingOutputStreamTest {
+    private static File file(String contents) throws IOException {
+        File file = File.createTempFile("comparing", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void commitWritesChanges() throws IOException {
+        File file = file("old contents");
+        try (ComparingOutputStream out = new ComparingOutputStream(file)) {
+            out.write("old".getBytes(StandardCharsets.UTF_8));
+            out.commit();
+            assertTrue(out.isChanged());
+        }
+        assertEquals("old", read(file));
+    }
+
+    @Test
+    public void commitKeepsEqualContents() throws IOException {
+        File file = file("contents");
+        try (ComparingOutputStream out = new ComparingOutputStream(file)) {
+            out.write("contents".getBytes(StandardCharsets.UTF_8));
+            out.commit();
+            assertFalse(out.isChanged());
+        }
+        assertEquals("contents", read(file));
+    }
+
+    @Test
+    public void abortKeepsUnmodifiedFile() throws IOException {
+        File file = file("old contents");
+        try (ComparingOutputStream out = new ComparingOutputStream(file)) {
+            out.write("old".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("old contents", read(file));
+    }
+
+    @Test
+    public void abortDeletesModifiedFile() throws IOException {
+        File file = file("old contents");
+        try (ComparingOutputStream out = new ComparingOutputStream(file)) {
+            out.write("new".getBytes(StandardCharsets.UTF_8));
+        }
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConstantLiteralsTest {
+    private static void assertMismatch(Object value, String fieldType) {
+        try {
+            ConstantLiterals.convert(value, fieldType);
+            fail("Expected mismatch of " + value + " and " + fieldType);
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void primitives() {
+        assertEquals(3, ConstantLiterals.convert(3L, "int"));
+        assertEquals(3L, ConstantLiterals.convert("3", "java.lang.Long"));
+        assertEquals('a', ConstantLiterals.convert("a", "char"));
+        assertEquals("1621234567890", ConstantLiterals.convert(1621234567890L, "String"));
+        assertMismatch(300, "byte");
+        assertMismatch("yes", "boolean");
+    }
+
+    @Test
+    public void assignableReferences() {
+        assertEquals(3, ConstantLiterals.convert(3, "Object"));
+        assertEquals(3, ConstantLiterals.convert(3, "java.lang.Number"));
+        assertEquals(3, ConstantLiterals.convert(3, "Comparable<Integer>"));
+        assertEquals("a", ConstantLiterals.convert("a", "CharSequence"));
+        assertEquals("a", ConstantLiterals.convert("a", "java.io.Serializable"));
+    }
+
+    @Test
+    public void unassignableReferences() {
+        assertMismatch(3, "java.util.List");
+        assertMismatch(3, "List<Integer>");
+        assertMismatch(3, "CharSequence");
+        assertMismatch(true, "Number");
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConstantsCacheTest {
+    @Test
+    public void roundTrip() throws IOException {
+        Map<String, String> constants = new HashMap<>();
+        constants.put("license", "Line one\nLine two\r\nkey=value\n");
+        constants.put("path", "C:\\new\\r");
+        constants.put("a=b", "c=d");
+        constants.put("key\\", "=");
+        constants.put("empty", "");
+        constants.put("missing", null);
+
+        File file = File.createTempFile("constantscache", ".txt");
+        file.deleteOnExit();
+        ConstantsCache.write(file, constants);
+
+        assertEquals(constants, ConstantsCache.read(file));
+    }
+}
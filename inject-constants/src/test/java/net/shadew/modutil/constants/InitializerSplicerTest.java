@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InitializerSplicerTest {
+    // Replaces the initializer of the given field, which is declared by the given text of the source
+    private static String splice(String source, String declaration, String name, String expression) {
+        int start = source.indexOf(declaration);
+        assertTrue(start >= 0);
+
+        InitializerSplicer splicer = new InitializerSplicer(source);
+        assertTrue(splicer.replace(start, start + declaration.length(), name, expression));
+        assertFalse(splicer.isFailed());
+        return splicer.apply();
+    }
+
+    private static boolean canSplice(String source, String name) {
+        InitializerSplicer splicer = new InitializerSplicer(source);
+        return splicer.replace(0, source.length(), name, "null");
+    }
+
+    @Test
+    public void simpleInitializer() {
+        String source = "static final String A = \"old\";";
+        assertEquals("static final String A = \"new\";", splice(source, source, "A", "\"new\""));
+    }
+
+    @Test
+    public void missingInitializer() {
+        assertEquals("static final int A = 1;", splice("static final int A;", "static final int A;", "A", "1"));
+    }
+
+    @Test
+    public void comments() {
+        String source = "// A = 1;\nstatic final int A /* = 2; */ = /* old */ 3 // three\n;";
+        assertEquals(
+            "// A = 1;\nstatic final int A /* = 2; */ = /* old */ 4 // three\n;",
+            splice(source, source.substring(10), "A", "4")
+        );
+    }
+
+    @Test
+    public void charLiterals() {
+        String source = "static final char A = ';';";
+        assertEquals("static final char A = 'x';", splice(source, source, "A", "'x'"));
+
+        source = "static final String A = \"a;\\\"b\" + '\\'' + ',';";
+        assertEquals("static final String A = \"c\";", splice(source, source, "A", "\"c\""));
+    }
+
+    @Test
+    public void nestedBraces() {
+        String source = "static final int[][] A = {{1, 2}, {3}};";
+        assertEquals("static final int[][] A = null;", splice(source, source, "A", "null"));
+
+        source = "static final Runnable A = () -> { int A = 1; if (A > 0) { A++; } };";
+        assertEquals("static final Runnable A = null;", splice(source, source, "A", "null"));
+    }
+
+    @Test
+    public void multipleDeclarators() {
+        String source = "static final int A = 1, B = f(2, 3), C = 4;";
+        assertEquals("static final int A = 1, B = 5, C = 4;", splice(source, source, "B", "5"));
+    }
+
+    @Test
+    public void qualifiedTypeWithSameName() {
+        String source = "static final Outer.A A = Outer.A.X;";
+        assertEquals("static final Outer.A A = null;", splice(source, source, "A", "null"));
+    }
+
+    @Test
+    public void keepsLines() {
+        String source = "static final String A = \"a\"\n    + \"b\"\n    + \"c\";";
+        assertEquals("static final String A = \"abc\"\n\n;", splice(source, source, "A", "\"abc\""));
+    }
+
+    @Test
+    public void shiftIsNoTypeArgument() {
+        String source = "static final int A = 1 << 2;";
+        assertEquals("static final int A = 8;", splice(source, source, "A", "8"));
+    }
+
+    @Test
+    public void typeArgumentsFallBack() {
+        // Commas in type arguments can't be told apart from declarators, the file must be printed by Roaster instead
+        assertFalse(canSplice("static final Map<String, String> A = Collections.<String, String>emptyMap();", "A"));
+        assertFalse(canSplice("static final boolean A = B < C;", "A"));
+    }
+
+    @Test
+    public void failureIsRemembered() {
+        InitializerSplicer splicer = new InitializerSplicer("static final int A = 1;");
+        assertFalse(splicer.replace(0, 23, "B", "2"));
+        assertTrue(splicer.isFailed());
+    }
+}
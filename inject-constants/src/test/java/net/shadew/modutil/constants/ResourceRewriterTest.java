@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class ResourceRewriterTest {
+    // The size of the chunks ResourceRewriter reads when streaming
+    private static final int CHUNK_SIZE = 65536;
+    private static final int MATCH_LIMIT = 16;
+
+    private static final Function<String, Object> RESOLVER = name -> "<" + name + ">";
+
+    private static ResourceRewriter.ContentMatcher matcher(String contentPattern) {
+        ResourceRewriter rewriter = new ResourceRewriter(
+            Collections.singletonMap(Pattern.compile(".*\\.txt"), Pattern.compile(contentPattern)),
+            MATCH_LIMIT
+        );
+        ResourceRewriter.ContentMatcher matcher = rewriter.forPath("inject.txt");
+        assertNotNull(matcher);
+        return matcher;
+    }
+
+    private static String stream(ResourceRewriter.ContentMatcher matcher, String content) throws IOException {
+        StringWriter out = new StringWriter();
+        matcher.rewrite(new StringReader(content), out, RESOLVER);
+        return out.toString();
+    }
+
+    private static String padding(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, '.');
+        return new String(chars);
+    }
+
+    // Streaming must give the same result as rewriting the content at once, wherever the buffer boundaries fall
+    private static void assertStreamsLikeString(String contentPattern, String content) throws IOException {
+        ResourceRewriter.ContentMatcher matcher = matcher(contentPattern);
+        String expected = matcher.rewrite(content, RESOLVER);
+        assertEquals(expected == null ? content : expected, stream(matcher, content));
+    }
+
+    @Test
+    public void matchStraddlingChunk() throws IOException {
+        String content = padding(CHUNK_SIZE - 3) + "@env{version}tail";
+        assertEquals(padding(CHUNK_SIZE - 3) + "<version>tail", stream(matcher("@env\\{(\\w+)\\}"), content));
+    }
+
+    @Test
+    public void matchAtEveryOffsetAroundBufferBoundaries() throws IOException {
+        for (int offset = CHUNK_SIZE - 20; offset < CHUNK_SIZE + 3 * MATCH_LIMIT + 20; offset++) {
+            assertStreamsLikeString("@env\\{(\\w+)\\}", padding(offset) + "@env{version}tail");
+        }
+    }
+
+    @Test
+    public void lookbehindContext() throws IOException {
+        ResourceRewriter.ContentMatcher matcher = matcher("(?<=key=)@(\\w+)@");
+        assertEquals("key=<a> other=@a@", stream(matcher, "key=@a@ other=@a@"));
+
+        // The lookbehind needs characters that were already written out
+        for (int offset = CHUNK_SIZE - 20; offset < CHUNK_SIZE + 3 * MATCH_LIMIT + 20; offset++) {
+            assertStreamsLikeString("(?<=key=)@(\\w+)@", padding(offset) + "key=@a@ other=@a@");
+        }
+    }
+
+    @Test
+    public void zeroLengthMatch() throws IOException {
+        assertEquals("<>a\n<>b\n", stream(matcher("(?m)^"), "a\nb\n"));
+
+        for (int offset = CHUNK_SIZE - 20; offset < CHUNK_SIZE + 3 * MATCH_LIMIT + 20; offset++) {
+            assertStreamsLikeString("(?=#)", padding(offset) + "#" + padding(100) + "#");
+            assertStreamsLikeString("#?", padding(offset) + "#x");
+        }
+    }
+
+    @Test
+    public void noMatch() throws IOException {
+        ResourceRewriter.ContentMatcher matcher = matcher("@env\\{(\\w+)\\}");
+        StringWriter out = new StringWriter();
+        assertFalse(matcher.rewrite(new StringReader("nothing here"), out, RESOLVER));
+        assertEquals("nothing here", out.toString());
+    }
+}
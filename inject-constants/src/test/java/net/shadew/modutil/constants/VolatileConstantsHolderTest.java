@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.constants;
+
+import org.gradle.api.InvalidUserDataException;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class VolatileConstantsHolderTest {
+    private static final String PATH = "java/com/example/BuildInfo.java";
+
+    private static VolatileConstantsHolder holder() {
+        return new VolatileConstantsHolder("com.example.Volatile", Collections.singleton("buildTime"));
+    }
+
+    private static Map<String, Map<String, String>> uses(String... types) {
+        Map<String, String> paths = new TreeMap<>();
+        for (String type : types) {
+            paths.put(type, PATH);
+        }
+        return Collections.singletonMap("buildTime", paths);
+    }
+
+    @Test
+    public void longIntoStringField() {
+        VolatileConstantsHolder holder = holder();
+        String source = holder.generate(key -> 1600000000000L, uses("java.lang.String"));
+
+        assertEquals("com.example.Volatile.BUILD_TIME$String", holder.getReference("buildTime", "java.lang.String"));
+        assertTrue(source.contains("public static final java.lang.String BUILD_TIME$String;"));
+        assertTrue(source.contains("BUILD_TIME$String = \"1600000000000\";"));
+    }
+
+    @Test
+    public void fieldPerType() {
+        VolatileConstantsHolder holder = holder();
+        String source = holder.generate(key -> 1600000000000L, uses("java.lang.String", "long"));
+
+        assertEquals("com.example.Volatile.BUILD_TIME$long", holder.getReference("buildTime", "long"));
+        assertTrue(source.contains("public static final long BUILD_TIME$long;"));
+        assertTrue(source.contains("BUILD_TIME$long = 1600000000000L;"));
+        assertTrue(source.contains("BUILD_TIME$String = \"1600000000000\";"));
+    }
+
+    @Test(expected = InvalidUserDataException.class)
+    public void mismatchIsReported() {
+        holder().generate(key -> "yesterday", uses("long"));
+    }
+
+    @Test
+    public void unusedKeyHasNoField() {
+        String source = holder().generate(key -> 1L, Collections.emptyMap());
+        assertFalse(source.contains("BUILD_TIME"));
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.shade;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Renames packages in a class file by only rewriting the UTF8 entries of its constant pool. A package rename never
+// changes anything else in a class, so the rest of the class is copied as it is. To know how to rename a UTF8 entry,
+// the constant pool and the attributes that refer to UTF8 entries are scanned for how each entry is used.
+public class ConstantPoolRelocator {
+    // How UTF8 entries are used
+    private static final int LITERAL = 1;
+    private static final int NAME = 2;
+    private static final int DESCRIPTOR = 4;
+    private static final int SIGNATURE = 8;
+    private static final int TYPE_SIGNATURE = 16;
+
+    // Attributes that don't refer to UTF8 entries, or only to ones that are never renamed
+    private static final Set<String> SKIPPED_ATTRIBUTES = new HashSet<>(Arrays.asList(
+        "ConstantValue", "Exceptions", "InnerClasses", "EnclosingMethod", "Synthetic", "Deprecated", "SourceFile",
+        "SourceDebugExtension", "LineNumberTable", "StackMapTable", "BootstrapMethods", "MethodParameters",
+        "NestHost", "NestMembers", "PermittedSubclasses"
+    ));
+
+    private final ShadeRemapper remapper;
+
+    public ConstantPoolRelocator(ShadeRemapper remapper) {
+        this.remapper = remapper;
+    }
+
+    // Returns the relocated class file, the same array if nothing needs to be renamed, or null if the class can't be
+    // relocated this way and must be remapped by ASM
+    public byte[] relocate(byte[] bytes) {
+        try {
+            return new ClassFile(bytes).relocate();
+        } catch (IOException | IndexOutOfBoundsException e) {
+            // Malformed or unsupported class, let ASM deal with it
+            return null;
+        }
+    }
+
+    private class ClassFile {
+        private final byte[] bytes;
+        private int[] offsets;
+        private byte[] tags;
+        private String[] utf8s;
+        private int[] roles;
+        private int poolEnd;
+        private boolean unknownAttributes;
+
+        ClassFile(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        byte[] relocate() throws IOException {
+            if (u4(0) != 0xCAFEBABE) return null;
+            if (!readPool()) return null;
+
+            // Most classes don't refer to any renamed package, these are copied as they are
+            boolean candidates = false;
+            for (String utf8 : utf8s) {
+                if (utf8 != null && mayRename(utf8)) {
+                    candidates = true;
+                    break;
+                }
+            }
+            if (!candidates) return bytes;
+
+            scanPool();
+            scanClass();
+
+            String[] renamed = new String[utf8s.length];
+            boolean changed = false;
+            for (int i = 1; i < utf8s.length; i++) {
+                String utf8 = utf8s[i];
+                if (utf8 == null || !mayRename(utf8)) continue;
+
+                // An entry we don't know the use of, or one that is used in ways that rename it differently, can't
+                // be renamed without splitting it into multiple entries
+                if (roles[i] == 0 || unknownAttributes) return null;
+                String result = null;
+                for (int role = LITERAL; role <= TYPE_SIGNATURE; role <<= 1) {
+                    if ((roles[i] & role) == 0) continue;
+                    String mapped = rename(utf8, role);
+                    if (result != null && !result.equals(mapped)) return null;
+                    result = mapped;
+                }
+
+                if (!result.equals(utf8)) {
+                    renamed[i] = result;
+                    changed = true;
+                }
+            }
+            return changed ? write(renamed) : bytes;
+        }
+
+        private boolean mayRename(String utf8) {
+            if (utf8.indexOf('/') < 0) return false;
+            if (remapper.isRenamed(utf8, 0)) return true;
+            for (int i = utf8.indexOf('L'); i >= 0; i = utf8.indexOf('L', i + 1)) {
+                if (remapper.isRenamed(utf8, i + 1)) return true;
+            }
+            return false;
+        }
+
+        private String rename(String utf8, int role) {
+            switch (role) {
+                case NAME: return remapper.mapType(utf8);
+                case DESCRIPTOR: return utf8.startsWith("(") ? remapper.mapMethodDesc(utf8) : remapper.mapDesc(utf8);
+                case SIGNATURE: return remapper.mapSignature(utf8, false);
+                case TYPE_SIGNATURE: return remapper.mapSignature(utf8, true);
+                default: return utf8;
+            }
+        }
+
+        private boolean readPool() throws IOException {
+            int count = u2(8);
+            offsets = new int[count];
+            tags = new byte[count];
+            utf8s = new String[count];
+            roles = new int[count];
+
+            int pos = 10;
+            for (int i = 1; i < count; i++) {
+                byte tag = bytes[pos];
+                tags[i] = tag;
+                offsets[i] = pos;
+                switch (tag) {
+                    case 1: // Utf8
+                        int length = u2(pos + 1);
+                        if (contains(pos + 3, length, (byte) '/')) {
+                            utf8s[i] = new DataInputStream(new ByteArrayInputStream(bytes, pos + 1, length + 2)).readUTF();
+                        }
+                        pos += 3 + length;
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                        pos += 3;
+                        break;
+                    case 15: // MethodHandle
+                        pos += 4;
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        pos += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        pos += 9;
+                        i++;
+                        break;
+                    default:
+                        // Modules and packages, or constants we don't know
+                        return false;
+                }
+            }
+            poolEnd = pos;
+            return true;
+        }
+
+        private boolean contains(int offset, int length, byte b) {
+            for (int i = offset, end = offset + length; i < end; i++) {
+                if (bytes[i] == b) return true;
+            }
+            return false;
+        }
+
+        private void scanPool() {
+            for (int i = 1; i < tags.length; i++) {
+                int pos = offsets[i];
+                switch (tags[i]) {
+                    case 7:
+                        use(u2(pos + 1), NAME);
+                        break;
+                    case 8:
+                        use(u2(pos + 1), LITERAL);
+                        break;
+                    case 16:
+                        use(u2(pos + 1), DESCRIPTOR);
+                        break;
+                    case 12:
+                        use(u2(pos + 1), LITERAL);
+                        use(u2(pos + 3), DESCRIPTOR);
+                        break;
+                }
+            }
+        }
+
+        private void scanClass() {
+            int pos = poolEnd + 6;
+            int interfaces = u2(pos);
+            pos += 2 + interfaces * 2;
+
+            for (int members = 0; members < 2; members++) {
+                int count = u2(pos);
+                pos += 2;
+                for (int i = 0; i < count; i++) {
+                    use(u2(pos + 2), LITERAL);
+                    use(u2(pos + 4), DESCRIPTOR);
+                    pos = scanAttributes(pos + 6, members == 0 ? TYPE_SIGNATURE : SIGNATURE);
+                }
+            }
+            scanAttributes(pos, SIGNATURE);
+        }
+
+        private int scanAttributes(int pos, int signatureRole) {
+            int count = u2(pos);
+            pos += 2;
+            for (int i = 0; i < count; i++) {
+                int nameIndex = u2(pos);
+                int length = u4(pos + 2);
+                int start = pos + 6;
+                scanAttribute(attributeName(nameIndex), start, signatureRole);
+                pos = start + length;
+            }
+            return pos;
+        }
+
+        private String attributeName(int index) {
+            int pos = offsets[index];
+            int length = u2(pos + 1);
+            try {
+                return new DataInputStream(new ByteArrayInputStream(bytes, pos + 1, length + 2)).readUTF();
+            } catch (IOException e) {
+                return "";
+            }
+        }
+
+        private void scanAttribute(String name, int pos, int signatureRole) {
+            switch (name) {
+                case "Signature":
+                    use(u2(pos), signatureRole);
+                    break;
+                case "Code": {
+                    int codeLength = u4(pos + 4);
+                    int exceptions = u2(pos + 8 + codeLength);
+                    scanAttributes(pos + 10 + codeLength + exceptions * 8, signatureRole);
+                    break;
+                }
+                case "LocalVariableTable":
+                case "LocalVariableTypeTable": {
+                    int count = u2(pos);
+                    for (int i = 0; i < count; i++) {
+                        int entry = pos + 2 + i * 10;
+                        use(u2(entry + 4), LITERAL);
+                        use(u2(entry + 6), name.equals("LocalVariableTable") ? DESCRIPTOR : TYPE_SIGNATURE);
+                    }
+                    break;
+                }
+                case "RuntimeVisibleAnnotations":
+                case "RuntimeInvisibleAnnotations": {
+                    int count = u2(pos);
+                    pos += 2;
+                    for (int i = 0; i < count; i++) {
+                        pos = scanAnnotation(pos);
+                    }
+                    break;
+                }
+                case "RuntimeVisibleParameterAnnotations":
+                case "RuntimeInvisibleParameterAnnotations": {
+                    int parameters = bytes[pos] & 0xFF;
+                    pos++;
+                    for (int p = 0; p < parameters; p++) {
+                        int count = u2(pos);
+                        pos += 2;
+                        for (int i = 0; i < count; i++) {
+                            pos = scanAnnotation(pos);
+                        }
+                    }
+                    break;
+                }
+                case "RuntimeVisibleTypeAnnotations":
+                case "RuntimeInvisibleTypeAnnotations": {
+                    int count = u2(pos);
+                    pos += 2;
+                    for (int i = 0; i < count; i++) {
+                        pos = skipTypeAnnotationTarget(pos);
+                        pos = scanAnnotation(pos);
+                    }
+                    break;
+                }
+                case "AnnotationDefault":
+                    scanElementValue(pos);
+                    break;
+                default:
+                    if (!SKIPPED_ATTRIBUTES.contains(name)) {
+                        unknownAttributes = true;
+                    }
+            }
+        }
+
+        private int scanAnnotation(int pos) {
+            use(u2(pos), DESCRIPTOR);
+            int pairs = u2(pos + 2);
+            pos += 4;
+            for (int i = 0; i < pairs; i++) {
+                use(u2(pos), LITERAL);
+                pos = scanElementValue(pos + 2);
+            }
+            return pos;
+        }
+
+        private int scanElementValue(int pos) {
+            char tag = (char) bytes[pos];
+            pos++;
+            switch (tag) {
+                case 's':
+                    use(u2(pos), LITERAL);
+                    return pos + 2;
+                case 'e':
+                    use(u2(pos), DESCRIPTOR);
+                    use(u2(pos + 2), LITERAL);
+                    return pos + 4;
+                case 'c':
+                    use(u2(pos), DESCRIPTOR);
+                    return pos + 2;
+                case '@':
+                    return scanAnnotation(pos);
+                case '[': {
+                    int count = u2(pos);
+                    pos += 2;
+                    for (int i = 0; i < count; i++) {
+                        pos = scanElementValue(pos);
+                    }
+                    return pos;
+                }
+                default:
+                    // Primitive constants
+                    return pos + 2;
+            }
+        }
+
+        private int skipTypeAnnotationTarget(int pos) {
+            int target = bytes[pos] & 0xFF;
+            pos++;
+            switch (target) {
+                case 0x00: case 0x01: case 0x16:
+                    pos += 1;
+                    break;
+                case 0x10: case 0x17: case 0x42: case 0x43: case 0x44: case 0x45: case 0x46:
+                    pos += 2;
+                    break;
+                case 0x11: case 0x12:
+                    pos += 2;
+                    break;
+                case 0x13: case 0x14: case 0x15:
+                    break;
+                case 0x40: case 0x41:
+                    pos += 2 + u2(pos) * 6;
+                    break;
+                case 0x47: case 0x48: case 0x49: case 0x4A: case 0x4B:
+                    pos += 3;
+                    break;
+                default:
+                    throw new IndexOutOfBoundsException("Unknown type annotation target " + target);
+            }
+            int pathLength = bytes[pos] & 0xFF;
+            return pos + 1 + pathLength * 2;
+        }
+
+        private void use(int index, int role) {
+            if (index > 0 && index < roles.length && tags[index] == 1) {
+                roles[index] |= role;
+            }
+        }
+
+        private byte[] write(String[] renamed) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 256);
+            DataOutputStream data = new DataOutputStream(out);
+
+            int copied = 0;
+            for (int i = 1; i < renamed.length; i++) {
+                if (renamed[i] == null) continue;
+
+                int pos = offsets[i];
+                out.write(bytes, copied, pos + 1 - copied);
+                data.writeUTF(renamed[i]); // Throws when the renamed entry gets too long
+                copied = pos + 3 + u2(pos + 1);
+            }
+            out.write(bytes, copied, bytes.length - copied);
+            return out.toByteArray();
+        }
+
+        private int u2(int pos) {
+            return (bytes[pos] & 0xFF) << 8 | bytes[pos + 1] & 0xFF;
+        }
+
+        private int u4(int pos) {
+            return (bytes[pos] & 0xFF) << 24 | (bytes[pos + 1] & 0xFF) << 16 | (bytes[pos + 2] & 0xFF) << 8 | bytes[pos + 3] & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.shadew.modutil.shade;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Remembers shaded classes on disk by the hash of their contents and of the shading rules, so that classes that were
+// shaded before, in any build or branch, don't need to be shaded again. An empty cache file means that shading did not
+// change the class. The least recently used files are removed when the cache gets too large.
+public class ShadeCache {
+    private static final Map<Class<?>, String> CODE_VERSIONS = new ConcurrentHashMap<>();
+
+    private final File dir;
+    private final byte[] fingerprint;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public ShadeCache(File dir, String fingerprint) {
+        this.dir = dir;
+        this.fingerprint = fingerprint.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String key(byte[] contents) {
+        MessageDigest digest = sha256();
+        digest.update(fingerprint);
+        digest.update((byte) 0);
+        digest.update(contents);
+        return hex(digest.digest());
+    }
+
+    // Identifies the code the given class was loaded with by the hash of its jar, so that results are not reused after
+    // that code changed, even if its version stayed the same. Classes that are not loaded from a jar are identified by
+    // their implementation version.
+    public static String codeVersion(Class<?> type) {
+        return CODE_VERSIONS.computeIfAbsent(type, t -> {
+            CodeSource source = t.getProtectionDomain().getCodeSource();
+            try {
+                if (source != null) {
+                    File file = new File(source.getLocation().toURI());
+                    if (file.isFile()) {
+                        return hex(sha256().digest(Files.readAllBytes(file.toPath())));
+                    }
+                }
+            } catch (URISyntaxException | IOException | IllegalArgumentException e) {
+                // Fall back to the version
+            }
+            String version = t.getPackage() != null ? t.getPackage().getImplementationVersion() : null;
+            return version != null ? version : "unknown";
+        });
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(Character.forDigit(b >>> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private File file(String key) {
+        return new File(dir, key.substring(0, 2) + "/" + key.substring(2) + ".bin");
+    }
+
+    // Returns the cached result, which is empty if shading did not change the class, or null if nothing is cached
+    public byte[] get(String key) {
+        File file = file(key);
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return bytes;
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    // Stores the result of shading a class, or null if shading did not change it. The cache is only an optimization,
+    // so it is not an error when this fails.
+    public void put(String key, byte[] result) {
+        File file = file(key);
+        Path temp = null;
+        try {
+            // Other builds may share the cache, so the temporary file must be unique across processes
+            file.getParentFile().mkdirs();
+            temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+            Files.write(temp, result == null ? new byte[0] : result);
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (temp != null) temp.toFile().delete();
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    // Removes the least recently used files until the cache is no larger than the given amount of bytes
+    public void evict(long limit) {
+        File[] buckets = dir.listFiles(File::isDirectory);
+        if (buckets == null) return;
+
+        List<File> files = new ArrayList<>();
+        long size = 0;
+        for (File bucket : buckets) {
+            File[] entries = bucket.listFiles();
+            if (entries == null) continue;
+            for (File entry : entries) {
+                files.add(entry);
+                size += entry.length();
+            }
+        }
+        if (size <= limit) return;
+
+        files.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (size <= limit) break;
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+    }
+}
@@ -18,26 +18,151 @@ package net.shadew.modutil.shade;
 
 import org.objectweb.asm.commons.Remapper;
 
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public class ShadeRemapper extends Remapper {
-    private final HashMap<String, String> packageRenames = new HashMap<>();
+    // The maximum amount of names and descriptors that are remembered, the caches are cleared when they get larger
+    private static final int CACHE_LIMIT = 1 << 16;
 
-    public void addPackageRename(String oldName, String newName) {
+    private final Map<String, String> packageRenames = new LinkedHashMap<>();
+
+    private final Map<String, String> nameCache = new ConcurrentHashMap<>();
+    private final Map<String, String> descCache = new ConcurrentHashMap<>();
+    private final Map<String, String> methodDescCache = new ConcurrentHashMap<>();
+
+    // Compiled from the renames when first needed
+    private volatile PackageTrie trie;
+
+    public synchronized void addPackageRename(String oldName, String newName) {
         packageRenames.put(oldName, newName);
+        trie = null;
+        nameCache.clear();
+        descCache.clear();
+        methodDescCache.clear();
+    }
+
+    // A description of all renames, which changes whenever they would shade anything differently
+    public synchronized String getFingerprint() {
+        StringBuilder builder = new StringBuilder();
+        new TreeMap<>(packageRenames).forEach((oldName, newName) -> builder.append(oldName).append('=').append(newName).append('\n'));
+        return builder.toString();
+    }
+
+    private PackageTrie trie() {
+        PackageTrie trie = this.trie;
+        if (trie == null) {
+            synchronized (this) {
+                trie = this.trie;
+                if (trie == null) {
+                    trie = new PackageTrie(packageRenames);
+                    this.trie = trie;
+                }
+            }
+        }
+        return trie;
     }
 
+    // Renames the package of the given name by the rename of its longest renamed package, if any
     @Override
     public String map(String internalName) {
-        for (Map.Entry<String, String> entry : packageRenames.entrySet()) {
-            if (internalName.startsWith(entry.getKey())) {
-                String sub = internalName.substring(entry.getKey().length());
-                if (sub.startsWith("/")) {
-                    return entry.getValue() + sub;
+        PackageTrie trie = trie();
+        if (internalName.isEmpty() || trie.rejects(internalName.charAt(0))) return internalName;
+        return cached(nameCache, internalName, trie::map);
+    }
+
+    // Whether a name starting at the given index of the given text is in a renamed package. Used to quickly find out if
+    // a descriptor or signature needs remapping without remapping it.
+    boolean isRenamed(String text, int start) {
+        PackageTrie trie = trie();
+        return start < text.length() && !trie.rejects(text.charAt(start)) && trie.isRenamed(text, start);
+    }
+
+    @Override
+    public String mapDesc(String descriptor) {
+        return cached(descCache, descriptor, super::mapDesc);
+    }
+
+    @Override
+    public String mapMethodDesc(String methodDescriptor) {
+        return cached(methodDescCache, methodDescriptor, super::mapMethodDesc);
+    }
+
+    private static String cached(Map<String, String> cache, String key, Function<String, String> fn) {
+        String value = cache.get(key);
+        if (value == null) {
+            value = fn.apply(key);
+            if (cache.size() >= CACHE_LIMIT) {
+                cache.clear();
+            }
+            cache.put(key, value);
+        }
+        return value;
+    }
+
+    // A trie of package names by their segments. Looking up a name walks its packages from the outermost one, so the
+    // cost of a lookup depends on the depth of the name and not on the amount of renames.
+    private static class PackageTrie {
+        private final Node root = new Node();
+        private final BitSet firstChars = new BitSet();
+
+        PackageTrie(Map<String, String> renames) {
+            renames.forEach((oldName, newName) -> {
+                Node node = root;
+                for (String segment : oldName.split("/", -1)) {
+                    node = node.children.computeIfAbsent(segment, k -> new Node());
+                }
+                node.rename = newName;
+                firstChars.set(oldName.isEmpty() ? '/' : oldName.charAt(0));
+            });
+        }
+
+        // Whether a name starting with the given character can't be in any renamed package, which is cheap to find out
+        // for most names
+        boolean rejects(char first) {
+            return !firstChars.get(first);
+        }
+
+        boolean isRenamed(String text, int start) {
+            Node node = root;
+            int slash;
+            while ((slash = text.indexOf('/', start)) >= 0) {
+                node = node.children.get(text.substring(start, slash));
+                if (node == null) return false;
+                if (node.rename != null) return true;
+                start = slash + 1;
+            }
+            return false;
+        }
+
+        String map(String name) {
+            Node node = root;
+            String rename = null;
+            int renamedLength = 0;
+
+            // Only segments followed by a slash are packages, the last segment is the class name
+            int start = 0;
+            int slash;
+            while ((slash = name.indexOf('/', start)) >= 0) {
+                node = node.children.get(name.substring(start, slash));
+                if (node == null) break;
+                if (node.rename != null) {
+                    rename = node.rename;
+                    renamedLength = slash;
                 }
+                start = slash + 1;
             }
+            return rename == null ? name : rename + name.substring(renamedLength);
         }
-        return internalName;
+    }
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        String rename;
     }
 }
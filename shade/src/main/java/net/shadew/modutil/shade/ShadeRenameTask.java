@@ -16,59 +16,212 @@
 
 package net.shadew.modutil.shade;
 
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.gradle.api.DefaultTask;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.commons.ClassRemapper;
 
 import java.io.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ShadeRenameTask extends DefaultTask {
     private File input;
     private File output;
     private ShadeRemapper remapper;
+    private int threads = 1;
+    private boolean fastRelocation;
+    private boolean useCache = true;
+    private long cacheLimit = 256L * 1024 * 1024;
+    private ShadeCache cache;
+
+    private final AtomicInteger copiedClasses = new AtomicInteger();
+    private final AtomicInteger relocatedClasses = new AtomicInteger();
+    private final AtomicInteger remappedClasses = new AtomicInteger();
 
     public ShadeRenameTask() {
 
         doLast(task -> {
-            try {
-                JarOutputStream out = new JarOutputStream(new FileOutputStream(output));
-
-                JarFile jar = new JarFile(input);
-                jar.stream().forEach(entry -> {
-                    try {
-                        out.putNextEntry(new JarEntry(this.remapper.map(entry.getName())));
-                        if (entry.getName().endsWith(".class")) {
-                            ClassReader reader = new ClassReader(jar.getInputStream(entry));
-                            ClassWriter writer = new ClassWriter(0);
-                            ClassRemapper remapper = new ClassRemapper(writer, this.remapper);
-                            reader.accept(remapper, ClassReader.EXPAND_FRAMES);
-                            out.write(writer.toByteArray());
-                        } else {
-                            InputStream is = jar.getInputStream(entry);
-                            byte[] buf = new byte[1024];
-                            int r;
-                            while ((r = is.read(buf)) != -1) {
-                                out.write(buf, 0, r);
-                            }
-                        }
-                        out.closeEntry();
-                    } catch (Throwable thr) {
-                        thr.printStackTrace();
-                        throw new RuntimeException(thr);
-                    }
-                });
-                out.close();
+            if (useCache) {
+                // The cache format, the way classes are shaded and the code that shades them are part of the key too
+                String fingerprint = "1\n" + (fastRelocation ? "fast" : "asm") + "\n"
+                                     + ShadeCache.codeVersion(ShadeRenameTask.class) + "\n"
+                                     + ShadeCache.codeVersion(ClassReader.class) + "\n"
+                                     + ShadeCache.codeVersion(ClassRemapper.class) + "\n"
+                                     + remapper.getFingerprint();
+                cache = new ShadeCache(getCacheDir(), fingerprint);
+            }
+
+            try (ZipFile zip = new ZipFile(input);
+                 JarArchiveOutputStream out = new JarArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(output)))) {
+                if (threads > 1) {
+                    shadePipelined(zip, out);
+                } else {
+                    shadeSequential(zip, out);
+                }
+
+                if (fastRelocation) {
+                    getLogger().info(
+                        "Shaded {} classes: {} copied, {} relocated in their constant pool, {} remapped by ASM",
+                        copiedClasses.get() + relocatedClasses.get() + remappedClasses.get(),
+                        copiedClasses.get(), relocatedClasses.get(), remappedClasses.get()
+                    );
+                }
             } catch (IOException exc) {
                 exc.printStackTrace();
                 throw new UncheckedIOException(exc);
             }
+
+            if (cache != null) {
+                getLogger().info("{} classes were taken from the shading cache, {} were shaded", cache.getHits(), cache.getMisses());
+                cache.evict(cacheLimit);
+                cache = null;
+            }
         });
     }
 
+    private void shadeSequential(ZipFile zip, ZipArchiveOutputStream out) {
+        Collections.list(zip.getEntries()).forEach(entry -> {
+            try {
+                writeEntry(zip, out, entry, shadeEntry(zip, entry));
+            } catch (Throwable thr) {
+                thr.printStackTrace();
+                throw new RuntimeException(thr);
+            }
+        });
+    }
+
+    // Entries are read and shaded ahead on a pool of threads, while this thread writes the results in the order of the
+    // input jar, so the output is the same as when shading sequentially
+    private void shadePipelined(ZipFile zip, ZipArchiveOutputStream out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            Deque<ZipArchiveEntry> entries = new ArrayDeque<>();
+            int readAhead = threads * 4;
+
+            for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+                // Only classes are changed by shading, other entries are not read at all
+                pending.add(isClass(entry) ? executor.submit(() -> shadeEntry(zip, entry)) : CompletableFuture.completedFuture(null));
+                entries.add(entry);
+
+                if (pending.size() >= readAhead) {
+                    writeEntry(zip, out, entries.poll(), await(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeEntry(zip, out, entries.poll(), await(pending.poll()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] await(Future<byte[]> data) {
+        try {
+            return data.get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(exc);
+        } catch (ExecutionException exc) {
+            exc.getCause().printStackTrace();
+            throw new RuntimeException(exc.getCause());
+        }
+    }
+
+    // Writes an entry with the given contents, or copies it from the input jar as it is when there are no contents.
+    // Copied entries are copied in their compressed form, so they don't need to be inflated and deflated again.
+    // Entries keep the modification time of the input, so that the output only depends on the input jar.
+    private void writeEntry(ZipFile zip, ZipArchiveOutputStream out, ZipArchiveEntry entry, byte[] data) throws IOException {
+        ZipArchiveEntry renamed = new ZipArchiveEntry(remapper.map(entry.getName()));
+        if (entry.getTime() != -1) {
+            renamed.setTime(entry.getTime());
+        }
+
+        if (data == null) {
+            renamed.setMethod(entry.getMethod());
+            renamed.setCrc(entry.getCrc());
+            renamed.setSize(entry.getSize());
+            renamed.setCompressedSize(entry.getCompressedSize());
+            try (InputStream in = zip.getRawInputStream(entry)) {
+                out.addRawArchiveEntry(renamed, in);
+            }
+        } else {
+            renamed.setSize(data.length);
+            out.putArchiveEntry(renamed);
+            out.write(data);
+            out.closeArchiveEntry();
+        }
+    }
+
+    private static boolean isClass(ZipArchiveEntry entry) {
+        return entry.getName().endsWith(".class");
+    }
+
+    // Returns the shaded contents of an entry, or null if shading doesn't change it
+    private byte[] shadeEntry(ZipFile zip, ZipArchiveEntry entry) throws IOException {
+        if (!isClass(entry)) return null;
+
+        byte[] bytes = read(zip, entry);
+        if (cache == null) {
+            return shadeClass(bytes);
+        }
+
+        String key = cache.key(bytes);
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            return cached.length == 0 ? null : cached;
+        }
+
+        byte[] result = shadeClass(bytes);
+        cache.put(key, result);
+        return result;
+    }
+
+    // Returns the shaded class, or null if shading doesn't change it
+    private byte[] shadeClass(byte[] bytes) {
+        if (fastRelocation) {
+            byte[] relocated = new ConstantPoolRelocator(remapper).relocate(bytes);
+            if (relocated == bytes) {
+                copiedClasses.incrementAndGet();
+                return null;
+            } else if (relocated != null) {
+                relocatedClasses.incrementAndGet();
+                return relocated;
+            }
+            remappedClasses.incrementAndGet();
+        }
+
+        ClassReader reader = new ClassReader(bytes);
+        ClassWriter writer = new ClassWriter(0);
+        ClassRemapper remapper = new ClassRemapper(writer, this.remapper);
+        reader.accept(remapper, ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+
+    private static byte[] read(ZipFile zip, ZipArchiveEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int r;
+            while ((r = in.read(buf)) != -1) {
+                out.write(buf, 0, r);
+            }
+            return out.toByteArray();
+        }
+    }
+
     public void setRemapper(ShadeRemapper remapper) {
         this.remapper = remapper;
     }
@@ -93,4 +246,69 @@ public class ShadeRenameTask extends DefaultTask {
     public File getOutput() {
         return output;
     }
+
+    // Sets the amount of threads classes are shaded on, more than one thread enables pipelined shading
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void threads(int threads) {
+        setThreads(threads);
+    }
+
+    public void parallel() {
+        setThreads(Runtime.getRuntime().availableProcessors());
+    }
+
+    // Fast relocation only rewrites the constant pool of classes that refer to shaded packages, and copies other classes
+    // as they are. Classes that can't be relocated this way are still remapped by ASM.
+    public void setFastRelocation(boolean fastRelocation) {
+        this.fastRelocation = fastRelocation;
+    }
+
+    public boolean getFastRelocation() {
+        return fastRelocation;
+    }
+
+    public void fastRelocation(boolean on) {
+        setFastRelocation(on);
+    }
+
+    public void fastRelocation() {
+        setFastRelocation(true);
+    }
+
+    // Shaded classes are cached in the Gradle user home, by their contents and the shading rules
+    public void setUseCache(boolean useCache) {
+        this.useCache = useCache;
+    }
+
+    public boolean getUseCache() {
+        return useCache;
+    }
+
+    public void useCache(boolean on) {
+        setUseCache(on);
+    }
+
+    // The maximum size of the cache in bytes, the least recently used classes are removed when it gets larger
+    public void setCacheLimit(long cacheLimit) {
+        this.cacheLimit = cacheLimit;
+    }
+
+    public long getCacheLimit() {
+        return cacheLimit;
+    }
+
+    public void cacheLimit(long bytes) {
+        setCacheLimit(bytes);
+    }
+
+    public File getCacheDir() {
+        return new File(getProject().getGradle().getGradleUserHomeDir(), "caches/modutil/shade");
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.shade;
+
+import net.shadew.modutil.shade.fixture.Fixture;
+import net.shadew.modutil.shade.fixture.Marker;
+import net.shadew.modutil.shade.fixture.SharedName;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class ConstantPoolRelocatorTest {
+    private static ShadeRemapper remapper() {
+        ShadeRemapper remapper = new ShadeRemapper();
+        remapper.addPackageRename("net/shadew/modutil/shade/fixture", "shaded/fixture");
+        return remapper;
+    }
+
+    private static byte[] classBytes(Class<?> type) throws IOException {
+        String name = "/" + type.getName().replace('.', '/') + ".class";
+        try (InputStream in = ConstantPoolRelocatorTest.class.getResourceAsStream(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int r;
+            while ((r = in.read(buf)) >= 0) {
+                out.write(buf, 0, r);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] remapWithAsm(byte[] bytes, ShadeRemapper remapper) {
+        ClassWriter writer = new ClassWriter(0);
+        new ClassReader(bytes).accept(new ClassRemapper(writer, remapper), 0);
+        return writer.toByteArray();
+    }
+
+    // Writing a class again with a fresh writer gives a constant pool in the order in which ASM visits the class, so
+    // classes that are the same apart from the layout of their constant pool give the same bytes
+    private static byte[] normalize(byte[] bytes) {
+        ClassWriter writer = new ClassWriter(0);
+        new ClassReader(bytes).accept(writer, 0);
+        return writer.toByteArray();
+    }
+
+    private static void assertRelocatesLikeAsm(Class<?> type) throws IOException {
+        ShadeRemapper remapper = remapper();
+        byte[] bytes = classBytes(type);
+
+        byte[] relocated = new ConstantPoolRelocator(remapper).relocate(bytes);
+        assertNotNull("Class " + type.getName() + " can't be relocated", relocated);
+        assertArrayEquals(normalize(remapWithAsm(bytes, remapper)), normalize(relocated));
+    }
+
+    @Test
+    public void relocatesLikeAsm() throws IOException {
+        assertRelocatesLikeAsm(Fixture.class);
+        assertRelocatesLikeAsm(Fixture.Inner.class);
+        assertRelocatesLikeAsm(Marker.class);
+    }
+
+    @Test
+    public void renamesClass() throws IOException {
+        byte[] relocated = new ConstantPoolRelocator(remapper()).relocate(classBytes(Fixture.class));
+        assertEquals("shaded/fixture/Fixture", new ClassReader(relocated).getClassName());
+    }
+
+    @Test
+    public void fallsBackOnConflictingSharedEntry() throws IOException {
+        assertNull(new ConstantPoolRelocator(remapper()).relocate(classBytes(SharedName.class)));
+    }
+
+    @Test
+    public void copiesUnrelatedClass() throws IOException {
+        byte[] bytes = classBytes(ConstantPoolRelocatorTest.class);
+        ShadeRemapper remapper = new ShadeRemapper();
+        remapper.addPackageRename("org/example", "shaded/example");
+        assertSame(bytes, new ConstantPoolRelocator(remapper).relocate(bytes));
+    }
+}
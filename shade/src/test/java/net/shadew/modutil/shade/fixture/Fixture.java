@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2021 Shadew
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.shadew.modutil.shade.fixture;
+
+import java.lang.annotation.ElementType;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Refers to its own package in as many places of the class file as possible
+@Marker(value = Fixture.class, kind = ElementType.FIELD)
+public class Fixture<T extends Fixture<T>> implements Comparable<Fixture<?>> {
+    public static final String NAME = "net.shadew.modutil.shade.fixture.Fixture";
+
+    @Marker
+    private List<@Marker Fixture<?>> children;
+    private Map<String, ? extends Marker> markers;
+    private Fixture<?>[][] grid;
+
+    // The descriptor of this field shares its constant pool entry with the class constant of Fixture[].class
+    @SuppressWarnings("rawtypes")
+    private Fixture[] array;
+
+    public <E extends Exception & Comparable<E>> @Marker Fixture<T> method(@Marker(Inner.class) Fixture<? super T> fixture) throws E {
+        Function<Fixture<?>, Inner> factory = Inner::new;
+        Object local = (@Marker Fixture<?>) fixture;
+        return local instanceof Fixture ? this : null;
+    }
+
+    public String names() {
+        return NAME + Fixture.class.getName() + Inner.class + Fixture[].class;
+    }
+
+    @Override
+    public int compareTo(Fixture<?> o) {
+        return 0;
+    }
+
+    public class Inner {
+        public Inner(Fixture<?> outer) {
+        }
+    }
+}